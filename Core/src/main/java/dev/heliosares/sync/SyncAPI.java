@@ -17,7 +17,11 @@ import java.util.UUID;
 public class SyncAPI {
     private static SyncCore instance;
     public static UUID ConsoleUUID = UUID.fromString("00000000-0000-0000-0000-000000000000");
-    public static final String PROTOCOL_VERSION = "3";
+    public static final String PROTOCOL_VERSION = "6";
+    /**
+     * The oldest protocol version which can still connect. Connections negotiated below {@link dev.heliosares.sync.net.PacketCodec#BINARY_PROTOCOL_VERSION} use the JSON wire format.
+     */
+    public static final String MIN_PROTOCOL_VERSION = "3";
 
     public static @Nonnull SyncCore getInstance() {
         if (instance != null) return instance;
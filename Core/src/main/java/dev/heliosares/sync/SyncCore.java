@@ -1,9 +1,14 @@
 package dev.heliosares.sync;
 
+import dev.heliosares.sync.net.Dispatcher;
+import dev.heliosares.sync.net.FrameCompression;
 import dev.heliosares.sync.net.IDProvider;
 import dev.heliosares.sync.net.PlayerData;
+import dev.heliosares.sync.net.SocketConnection;
 import dev.heliosares.sync.net.SyncNetCore;
+import dev.heliosares.sync.net.SyncPolicy;
 
+import java.util.Map;
 import java.util.function.Supplier;
 
 public interface SyncCore {
@@ -42,4 +47,53 @@ public interface SyncCore {
     PlatformType getPlatformType();
 
     void onNewPlayerData(PlayerData data);
+
+    /**
+     * @return The size in bytes from which frames are compressed, or -1 to never compress. Only applies to connections which support it.
+     */
+    default int getCompressionThreshold() {
+        return FrameCompression.DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * @return How long a connection waits for more packets to write together with the first queued one, in milliseconds. 0 writes immediately, batching only what is already queued.
+     */
+    default long getWriteLingerMillis() {
+        return 0;
+    }
+
+    /**
+     * @return The most frames a connection writes before flushing
+     */
+    default int getWriteMaxBatch() {
+        return SocketConnection.DEFAULT_WRITE_MAX_BATCH;
+    }
+
+    /**
+     * @return How far out of order packets from one sender may arrive. Packets further behind the newest are rejected as replays.
+     */
+    default int getReplayWindow() {
+        return SocketConnection.DEFAULT_REPLAY_WINDOW;
+    }
+
+    /**
+     * @return How many threads handle received packets, see {@link Dispatcher}. As many again write queued packets.
+     */
+    default int getDispatchThreads() {
+        return Dispatcher.DEFAULT_THREADS;
+    }
+
+    /**
+     * @return How many threads serve all connections using non-blocking sockets, or 0 to use blocking sockets with a thread per connection
+     */
+    default int getNetworkThreads() {
+        return 0;
+    }
+
+    /**
+     * @return Policies limiting how often player data variables are sent, by variable name, see {@link SyncPolicy}
+     */
+    default Map<String, SyncPolicy> getSyncPolicies() {
+        return SyncPolicy.DEFAULTS;
+    }
 }
@@ -2,6 +2,7 @@ package dev.heliosares.sync;
 
 import dev.heliosares.sync.net.DisconnectReason;
 import dev.heliosares.sync.net.SyncServer;
+import dev.heliosares.sync.net.UserManager;
 
 import java.util.UUID;
 
@@ -13,6 +14,14 @@ public interface SyncCoreProxy extends SyncCore {
     void callDisconnectEvent(String server, DisconnectReason reason);
 
     boolean isOnline(UUID uuid);
+
+    /**
+     * @return How many recent player data changes are kept for servers catching up after reconnecting. Servers which missed more receive every player instead.
+     */
+    default int getPlayerDataLogSize() {
+        return UserManager.DEFAULT_DELTA_LOG_SIZE;
+    }
+
     @Override
     SyncServer getSync();
 }
@@ -0,0 +1,345 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.BlobPacket;
+import dev.heliosares.sync.net.packet.MalformedPacketException;
+import dev.heliosares.sync.net.packet.Packet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary wire format, used from protocol version {@value PacketCodec#BINARY_PROTOCOL_VERSION}.
+ * <p>
+ * Every frame starts with a fixed header:
+ * <pre>
+ * byte  flags
+ * byte  type id
+ * long  response id       (0 unless FLAG_RESPONSE_ID)
+ * long  reply-to id       (0 unless FLAG_REPLY_TO)
+ * </pre>
+ * followed by the channel, forward and origin strings if flagged. From protocol version {@value PacketCodec#BLOB_IN_FRAME_PROTOCOL_VERSION} the blob of a
+ * {@link BlobPacket} comes next (length-prefixed), so it can be sliced out of the frame without copying. The payload comes last, as a binary JSON value.
+ */
+public class BinaryPacketCodec implements PacketCodec {
+    static final int FLAG_RESPONSE_ID = 1;
+    static final int FLAG_REPLY_TO = 1 << 1;
+    static final int FLAG_CHANNEL = 1 << 2;
+    static final int FLAG_FORWARD = 1 << 3;
+    static final int FLAG_ORIGIN = 1 << 4;
+    static final int FLAG_PAYLOAD = 1 << 5;
+    static final int FLAG_BLOB = 1 << 6;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY = 8;
+    private static final int TAG_DECIMAL = 9;
+    private static final int TAG_BIG_INTEGER = 10;
+
+    private final boolean embedBlob;
+
+    BinaryPacketCodec(boolean embedBlob) {
+        this.embedBlob = embedBlob;
+    }
+
+    @Override
+    public boolean embedsBlob() {
+        return embedBlob;
+    }
+
+    @Override
+    public byte[] encode(Packet packet) {
+        ByteBuffer blob = embedBlob && packet instanceof BlobPacket blobPacket ? blobPacket.getBlobBuffer() : null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (blob == null ? 0 : blob.remaining()));
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            JSONObject payload = packet.getPayload();
+            boolean hasPayload = payload != null && !payload.isEmpty();
+
+            int flags = 0;
+            if (packet.getResponseID() != null) flags |= FLAG_RESPONSE_ID;
+            if (packet.getReplyToResponseID() != null) flags |= FLAG_REPLY_TO;
+            if (packet.getChannel() != null) flags |= FLAG_CHANNEL;
+            if (packet.getForward() != null) flags |= FLAG_FORWARD;
+            if (packet.getOrigin() != null) flags |= FLAG_ORIGIN;
+            if (hasPayload) flags |= FLAG_PAYLOAD;
+            if (blob != null) flags |= FLAG_BLOB;
+
+            out.writeByte(flags);
+            out.writeByte(packet.getType().id);
+            out.writeLong(packet.getResponseID() == null ? 0 : packet.getResponseID().combined());
+            out.writeLong(packet.getReplyToResponseID() == null ? 0 : packet.getReplyToResponseID().combined());
+            if (packet.getChannel() != null) writeString(out, packet.getChannel());
+            if (packet.getForward() != null) writeString(out, packet.getForward());
+            if (packet.getOrigin() != null) writeString(out, packet.getOrigin());
+            if (blob != null) {
+                writeVarLong(out, blob.remaining());
+                byte[] buffer = new byte[Math.min(blob.remaining(), 8192)];
+                while (blob.hasRemaining()) {
+                    int length = Math.min(blob.remaining(), buffer.length);
+                    blob.get(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                }
+            }
+            if (hasPayload) writeValue(out, payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream does not throw
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Only the header is decoded here, the payload is decoded when first accessed. See {@link Packet.LazyPayload}.
+     */
+    @Override
+    public Packet decode(byte[] data) throws MalformedPacketException {
+        Header header = readHeader(data);
+        JSONObject json = new JSONObject();
+        json.put("ty", header.type().id);
+        if (header.responseID() != null) json.put("rid", header.responseID().combined());
+        if (header.replyToResponseID() != null) json.put("rtr", header.replyToResponseID().combined());
+        json.putOpt("ch", header.channel());
+        json.putOpt("fw", header.forward());
+        json.putOpt("or", header.origin());
+        if (header.hasPayload()) {
+            Packet.LazyPayload payload = () -> decodePayload(data, header.payloadOffset());
+            json.put("pl", payload);
+        }
+        Packet packet = PacketType.getPacketFromJSON(json);
+        if (packet instanceof BlobPacket blobPacket) {
+            if (header.hasBlob()) {
+                blobPacket.setBlob(ByteBuffer.wrap(data, header.blobOffset(), header.blobLength()));
+            } else if (embedBlob) {
+                blobPacket.setBlob(new byte[0]);
+            }
+        }
+        return packet;
+    }
+
+    private static JSONObject decodePayload(byte[] data, int offset) throws MalformedPacketException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, data.length - offset));
+        try {
+            if (!(readValue(in) instanceof JSONObject payload)) {
+                throw new MalformedPacketException("Payload is not an object");
+            }
+            return payload;
+        } catch (EOFException e) {
+            throw new MalformedPacketException("Truncated packet (" + data.length + " bytes)");
+        } catch (IOException e) {
+            throw new MalformedPacketException("Malformed packet: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The routing fields of a frame, read without touching the blob or payload.
+     *
+     * @param bodyOffset    The index of the first byte after the header, where the blob or payload starts
+     * @param blobOffset    The index of the first blob byte in the frame
+     * @param payloadOffset The index of the first payload byte in the frame
+     */
+    public record Header(int flags, PacketType type, @Nullable IDProvider.ID responseID,
+                         @Nullable IDProvider.ID replyToResponseID, @Nullable String channel,
+                         @Nullable String forward, @Nullable String origin,
+                         int bodyOffset, int blobOffset, int blobLength, int payloadOffset) {
+        public boolean hasPayload() {
+            return (flags & FLAG_PAYLOAD) != 0;
+        }
+
+        public boolean hasBlob() {
+            return (flags & FLAG_BLOB) != 0;
+        }
+    }
+
+    public static Header readHeader(byte[] data) throws MalformedPacketException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        try {
+            int flags = in.readUnsignedByte();
+            PacketType type;
+            try {
+                type = PacketType.getByID(in.readUnsignedByte());
+            } catch (IllegalArgumentException e) {
+                throw new MalformedPacketException(e.getMessage());
+            }
+            long responseID = in.readLong();
+            long replyToResponseID = in.readLong();
+            String channel = (flags & FLAG_CHANNEL) != 0 ? readString(in) : null;
+            String forward = (flags & FLAG_FORWARD) != 0 ? readString(in) : null;
+            String origin = (flags & FLAG_ORIGIN) != 0 ? readString(in) : null;
+            int bodyOffset = data.length - bytes.available();
+            int blobLength = 0;
+            if ((flags & FLAG_BLOB) != 0) {
+                blobLength = readLength(in);
+                if (in.skipBytes(blobLength) < blobLength) throw new EOFException();
+            }
+            int payloadOffset = data.length - bytes.available();
+            return new Header(flags, type,
+                    (flags & FLAG_RESPONSE_ID) != 0 ? IDProvider.parse(responseID) : null,
+                    (flags & FLAG_REPLY_TO) != 0 ? IDProvider.parse(replyToResponseID) : null,
+                    channel, forward, origin, bodyOffset, payloadOffset - blobLength, blobLength, payloadOffset);
+        } catch (EOFException e) {
+            throw new MalformedPacketException("Truncated packet (" + data.length + " bytes)");
+        } catch (IOException e) {
+            throw new MalformedPacketException("Malformed packet: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the header of a frame for relaying to another connection. The forward target is removed and the origin is set, the blob and payload bytes are copied as they are.
+     *
+     * @param data   The frame as received
+     * @param header The header of that frame, see {@link #readHeader(byte[])}
+     * @param origin The name of the server the frame was received from
+     * @return The frame to send on
+     */
+    public static byte[] relay(byte[] data, Header header, String origin) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + origin.length());
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte((header.flags() & ~FLAG_FORWARD) | FLAG_ORIGIN);
+            out.writeByte(header.type().id);
+            out.writeLong(header.responseID() == null ? 0 : header.responseID().combined());
+            out.writeLong(header.replyToResponseID() == null ? 0 : header.replyToResponseID().combined());
+            if (header.channel() != null) writeString(out, header.channel());
+            writeString(out, origin);
+            out.write(data, header.bodyOffset(), data.length - header.bodyOffset());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream does not throw
+        }
+        return bytes.toByteArray();
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean bool) {
+            out.writeByte(bool ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(TAG_INT);
+            writeVarLong(out, ((Number) value).intValue());
+        } else if (value instanceof Long l) {
+            out.writeByte(TAG_LONG);
+            writeVarLong(out, l);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal decimal) {
+            out.writeByte(TAG_DECIMAL);
+            writeString(out, decimal.toString());
+        } else if (value instanceof BigInteger bigInteger) {
+            out.writeByte(TAG_BIG_INTEGER);
+            writeString(out, bigInteger.toString());
+        } else if (value instanceof JSONObject object) {
+            out.writeByte(TAG_OBJECT);
+            writeVarLong(out, object.length());
+            for (String key : object.keySet()) {
+                writeString(out, key);
+                writeValue(out, object.opt(key));
+            }
+        } else if (value instanceof JSONArray array) {
+            out.writeByte(TAG_ARRAY);
+            writeVarLong(out, array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(out, array.opt(i));
+            }
+        } else {
+            Object wrapped = JSONObject.wrap(value);
+            if (wrapped instanceof JSONObject || wrapped instanceof JSONArray) {
+                writeValue(out, wrapped);
+            } else {
+                out.writeByte(TAG_STRING);
+                writeString(out, value.toString());
+            }
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        return switch (tag) {
+            case TAG_NULL -> JSONObject.NULL;
+            case TAG_FALSE -> false;
+            case TAG_TRUE -> true;
+            case TAG_INT -> (int) readVarLong(in);
+            case TAG_LONG -> readVarLong(in);
+            case TAG_DOUBLE -> in.readDouble();
+            case TAG_STRING -> readString(in);
+            case TAG_DECIMAL -> new BigDecimal(readString(in));
+            case TAG_BIG_INTEGER -> new BigInteger(readString(in));
+            case TAG_OBJECT -> {
+                int length = readLength(in);
+                JSONObject object = new JSONObject();
+                for (int i = 0; i < length; i++) {
+                    String key = readString(in);
+                    object.put(key, readValue(in));
+                }
+                yield object;
+            }
+            case TAG_ARRAY -> {
+                int length = readLength(in);
+                JSONArray array = new JSONArray();
+                for (int i = 0; i < length; i++) {
+                    array.put(readValue(in));
+                }
+                yield array;
+            }
+            default -> throw new IOException("Unknown value tag " + tag);
+        };
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length > in.available()) throw new EOFException();
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) throw new IOException("Invalid length " + length);
+        return (int) length;
+    }
+
+    /**
+     * Writes a zig-zag encoded variable length integer. Small values of either sign take a single byte.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Variable length integer too long");
+    }
+}
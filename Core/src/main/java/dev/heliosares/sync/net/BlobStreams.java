@@ -0,0 +1,362 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncCore;
+import dev.heliosares.sync.net.packet.BlobPacket;
+import dev.heliosares.sync.net.packet.Packet;
+import org.json.JSONObject;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers blobs of any size as a sequence of bounded chunks, so neither side holds the whole blob in memory and other packets are sent in between chunks.
+ * <p>
+ * Chunks are {@link PacketType#API_WITH_BLOB} packets on the {@value #CHANNEL} channel, so endpoints which do not support streams simply ignore them. The receiver grants the sender credit for more chunks as it consumes them, so at most {@value #WINDOW} chunks of a stream are in flight or buffered at a time.
+ */
+public class BlobStreams {
+    public static final String CHANNEL = "Sync:stream";
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int WINDOW = 16;
+    static final long TIMEOUT_MILLIS = 30000L;
+
+    private final SyncCore plugin;
+    private final SyncNetCore sync;
+    private final AtomicLong lastStreamID = new AtomicLong();
+    private final Map<String, StreamListener> listeners = new ConcurrentHashMap<>();
+    private final Map<Long, OutgoingStream> outgoing = new ConcurrentHashMap<>();
+    private final Map<String, IncomingStream> incoming = new ConcurrentHashMap<>();
+
+    BlobStreams(SyncCore plugin, SyncNetCore sync) {
+        this.plugin = plugin;
+        this.sync = sync;
+        sync.getEventHandler().registerListener(PacketType.API_WITH_BLOB, CHANNEL, this::handleChunk);
+        sync.getEventHandler().registerListener(PacketType.API, CHANNEL, this::handleControl);
+    }
+
+    /**
+     * Registers a listener for streams sent on a channel. Only one listener may be registered per channel.
+     */
+    public void registerListener(String channel, StreamListener listener) {
+        if (!channel.matches("\\w+:[\\w-]+")) {
+            throw new IllegalArgumentException("Channel name must conform to 'PluginName:Channel', '" + channel + "' does not");
+        }
+        if (listeners.putIfAbsent(channel, listener) != null) {
+            throw new IllegalArgumentException("A stream listener is already registered for " + channel);
+        }
+    }
+
+    public void unregisterListener(String channel) {
+        listeners.remove(channel);
+    }
+
+    /**
+     * Sends the contents of a stream to another server. Reading and sending happen asynchronously, and the stream is closed once it is exhausted.
+     *
+     * @param server   The recipient. On a backend, null sends to the proxy.
+     * @param channel  The channel the recipient is listening on, see {@link #registerListener(String, StreamListener)}
+     * @param metadata Passed to the recipient's listener before any data
+     * @return Completes once the last chunk is sent, or exceptionally if the transfer failed or was cancelled by the recipient
+     */
+    public CompletableFuture<Void> send(@Nullable String server, String channel, JSONObject metadata, InputStream data) {
+        if (server == null && sync instanceof SyncServer) {
+            throw new IllegalArgumentException("Streams can only be sent to a single server");
+        }
+        OutgoingStream stream = new OutgoingStream(lastStreamID.incrementAndGet(), server == null ? "proxy" : server);
+        outgoing.put(stream.id, stream);
+        CompletableFuture<Void> completable = new CompletableFuture<>();
+        plugin.runAsync(() -> {
+            long seq = 0;
+            try (data) {
+                boolean end = false;
+                while (!end) {
+                    byte[] bytes = data.readNBytes(CHUNK_SIZE);
+                    end = bytes.length < CHUNK_SIZE;
+                    stream.awaitCredit();
+
+                    JSONObject payload = new JSONObject().put("id", stream.id).put("seq", seq);
+                    if (seq == 0) payload.put("channel", channel).put("meta", metadata);
+                    if (end) payload.put("end", true);
+                    if (!sync.send(route(stream.server), new BlobPacket(CHANNEL, payload).setBlob(bytes))) {
+                        throw new IOException("Not connected to " + stream.server);
+                    }
+                    seq++;
+                }
+                completable.complete(null);
+            } catch (Exception e) {
+                if (!stream.isCancelled()) {
+                    try {
+                        JSONObject payload = new JSONObject().put("id", stream.id).put("seq", seq).put("abort", String.valueOf(e.getMessage()));
+                        sync.send(route(stream.server), new BlobPacket(CHANNEL, payload).setBlob(new byte[0]));
+                    } catch (Exception ignored) {
+                    }
+                }
+                completable.completeExceptionally(e);
+            } finally {
+                outgoing.remove(stream.id);
+            }
+        });
+        return completable;
+    }
+
+    public CompletableFuture<Void> send(@Nullable String server, String channel, JSONObject metadata, Path file) throws IOException {
+        return send(server, channel, metadata, Files.newInputStream(file));
+    }
+
+    private String route(String server) {
+        return sync instanceof SyncClient && "proxy".equals(server) ? null : server;
+    }
+
+    private void sendControl(String server, long id, String key, Object value) {
+        try {
+            sync.send(route(server), new Packet(CHANNEL, PacketType.API, new JSONObject().put("id", id).put(key, value)));
+        } catch (IOException e) {
+            plugin.print("Failed to send stream control to " + server, e);
+        }
+    }
+
+    private void handleControl(String server, Packet packet) {
+        if (packet.isResponse()) return;
+        OutgoingStream stream = outgoing.get(packet.getPayload().getLong("id"));
+        if (stream == null || !stream.server.equals(server)) return;
+
+        if (packet.getPayload().optBoolean("cancel")) stream.cancel();
+        else stream.grant(packet.getPayload().getInt("credit"));
+    }
+
+    private void handleChunk(String server, Packet packet) {
+        if (packet.isResponse() || !(packet instanceof BlobPacket chunk)) return;
+        JSONObject payload = packet.getPayload();
+        long id = payload.getLong("id");
+        String key = server + "/" + id;
+
+        IncomingStream stream = incoming.computeIfAbsent(key, k -> {
+            IncomingStream created = new IncomingStream(server, id, k);
+            // In case the first chunk never arrives
+            plugin.scheduleAsync(() -> {
+                if (!created.opened) created.close();
+            }, TIMEOUT_MILLIS);
+            return created;
+        });
+        stream.offer(payload.getLong("seq"), chunk.getBlobBuffer(), payload.optBoolean("end"), payload.optString("abort", null));
+
+        if (!payload.has("channel")) return;
+        String channel = payload.getString("channel");
+        StreamListener listener = listeners.get(channel);
+        if (listener == null) {
+            plugin.debug("No stream listener for " + channel + " from " + server + ", cancelling");
+            stream.close();
+            return;
+        }
+        JSONObject metadata = payload.has("meta") ? payload.getJSONObject("meta") : new JSONObject();
+        stream.opened = true;
+        plugin.runAsync(() -> {
+            try (stream) {
+                listener.accept(server, metadata, stream);
+            } catch (Throwable t) {
+                plugin.print("Error in stream listener for " + channel, t);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    public interface StreamListener {
+        /**
+         * Called asynchronously when a stream is opened. The stream is closed when this returns, cancelling the transfer if it was not read to the end.
+         *
+         * @param server   The sender of the stream
+         * @param metadata The metadata passed by the sender
+         * @param stream   The data, which blocks until it is received
+         */
+        void accept(String server, JSONObject metadata, IncomingStream stream) throws Exception;
+    }
+
+    private static final class OutgoingStream {
+        private final long id;
+        private final String server;
+        private int credit = WINDOW;
+        private boolean cancelled;
+
+        private OutgoingStream(long id, String server) {
+            this.id = id;
+            this.server = server;
+        }
+
+        synchronized void awaitCredit() throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (credit <= 0 && !cancelled) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new IOException("Timed out waiting for " + server + " to accept stream data");
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (cancelled) throw new IOException("Stream cancelled by " + server);
+            credit--;
+        }
+
+        synchronized void grant(int credit) {
+            this.credit += credit;
+            notifyAll();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private record Chunk(ByteBuffer data, boolean end, @Nullable String error) {
+    }
+
+    /**
+     * The receiving end of a stream. Reads block until the next chunk arrives, and fail if none arrives within {@value #TIMEOUT_MILLIS}ms.
+     */
+    public final class IncomingStream extends InputStream {
+        private final String server;
+        private final long id;
+        private final String key;
+        private final TreeMap<Long, Chunk> pending = new TreeMap<>();
+        private long nextSeq;
+        private ByteBuffer current;
+        private boolean ended;
+        private boolean closed;
+        private int consumed;
+        private volatile boolean opened;
+
+        private IncomingStream(String server, long id, String key) {
+            this.server = server;
+            this.id = id;
+            this.key = key;
+        }
+
+        /**
+         * Chunks may arrive out of order, they are put back in order by their sequence number.
+         */
+        private synchronized void offer(long seq, ByteBuffer data, boolean end, @Nullable String error) {
+            if (closed || seq < nextSeq) return;
+            pending.put(seq, new Chunk(data, end || error != null, error));
+            notifyAll();
+        }
+
+        /**
+         * @return Whether there is data left. Must be called while synchronized.
+         */
+        private boolean advance() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (ended) return false;
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                Chunk chunk;
+                while ((chunk = pending.remove(nextSeq)) == null) {
+                    if (closed) throw new IOException("Stream closed");
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new IOException("Timed out waiting for stream data from " + server);
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                nextSeq++;
+                if (chunk.error() != null) throw new IOException("Stream aborted by " + server + ": " + chunk.error());
+                current = chunk.data();
+                ended = chunk.end();
+                consumed++;
+            }
+            return true;
+        }
+
+        /**
+         * @return The credit to grant the sender for the chunks consumed since the last grant. Must be called while synchronized.
+         */
+        private int takeCredit() {
+            if (ended || consumed < WINDOW / 2) return 0;
+            int credit = consumed;
+            consumed = 0;
+            return credit;
+        }
+
+        private void grant(int credit) {
+            if (credit > 0) sendControl(server, id, "credit", credit);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read;
+            int credit;
+            synchronized (this) {
+                read = advance() ? current.get() & 0xFF : -1;
+                credit = takeCredit();
+            }
+            grant(credit);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) return 0;
+            int read;
+            int credit;
+            synchronized (this) {
+                if (advance()) {
+                    read = Math.min(len, current.remaining());
+                    current.get(b, off, read);
+                } else {
+                    read = -1;
+                }
+                credit = takeCredit();
+            }
+            grant(credit);
+            return read;
+        }
+
+        @Override
+        public synchronized int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        /**
+         * Writes the rest of the stream to a file, replacing it if it exists.
+         */
+        public void saveTo(Path file) throws IOException {
+            Files.copy(this, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Closes the stream. If it was not read to the end, the sender is told to stop.
+         */
+        @Override
+        public void close() {
+            boolean complete;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                complete = ended && (current == null || !current.hasRemaining());
+                pending.clear();
+                current = null;
+                notifyAll();
+            }
+            if (!complete) sendControl(server, id, "cancel", true);
+            // Linger so late chunks are dropped rather than starting a new stream
+            plugin.scheduleAsync(() -> incoming.remove(key, this), TIMEOUT_MILLIS);
+        }
+    }
+}
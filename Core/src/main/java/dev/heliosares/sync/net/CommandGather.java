@@ -0,0 +1,75 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.CommandPacket;
+import dev.heliosares.sync.net.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a command to each server separately and collects its output until the server reports the command finished, see {@link SyncNetCore#executeCommand(Collection, String, long)}
+ */
+final class CommandGather extends ResponseHandler {
+    private final String server;
+    private final long sent = System.nanoTime();
+    private final CompletableFuture<CommandResult> result = new CompletableFuture<>();
+    // Guarded by this
+    private final List<String> output = new ArrayList<>();
+
+    private CommandGather(String server) {
+        this.server = server;
+        result.whenComplete((r, t) -> cancel());
+    }
+
+    static CompletableFuture<Map<String, CommandResult>> execute(SyncNetCore sync, Collection<String> servers, String command, long timeoutMillis) {
+        Map<String, CompletableFuture<CommandResult>> results = new LinkedHashMap<>();
+        for (String server : new LinkedHashSet<>(servers)) {
+            CommandGather gather = new CommandGather(server);
+            results.put(server, gather.result);
+            CommandPacket packet = new CommandPacket(command);
+            packet.gather().set(true);
+            try {
+                if (sync.send(server, packet, gather, timeoutMillis, null)) gather.sent();
+                else gather.complete(CommandResult.Status.NOT_SENT);
+            } catch (Exception e) {
+                gather.complete(CommandResult.Status.NOT_SENT);
+            }
+        }
+        return CompletableFuture.allOf(results.values().toArray(CompletableFuture[]::new)).thenApply(v -> {
+            Map<String, CommandResult> out = new LinkedHashMap<>();
+            results.forEach((server, result) -> out.put(server, result.join()));
+            return out;
+        });
+    }
+
+    @Override
+    public void accept(Packet packet) {
+        if (!(packet instanceof CommandPacket response)) return;
+        List<String> lines = response.lines().get();
+        String msg = response.msg().get();
+        synchronized (this) {
+            if (lines != null) output.addAll(lines);
+            if (msg != null) output.add(msg);
+        }
+        if (response.done().get(false)) complete(CommandResult.Status.parse(response.status().get()));
+    }
+
+    @Override
+    void finished() {
+        complete(CommandResult.Status.TIMED_OUT);
+    }
+
+    private void complete(CommandResult.Status status) {
+        List<String> output;
+        synchronized (this) {
+            output = List.copyOf(this.output);
+        }
+        result.complete(new CommandResult(server, output, status, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent)));
+    }
+}
@@ -0,0 +1,107 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncCore;
+import dev.heliosares.sync.net.packet.CommandPacket;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the output of a command received in a {@link CommandPacket} back to its sender. Lines are sent in the order they were printed, followed by the status if the sender waits for it.
+ * <p>
+ * Lines are buffered and sent together once {@value #MAX_BATCH_LINES} lines or {@value #MAX_BATCH_CHARS} characters have been printed, {@value #LINGER_MILLIS}ms after the first one, or when the command finishes. The last lines are sent in the same packet as the status.
+ */
+public final class CommandOutput {
+    static final int MAX_BATCH_LINES = 100;
+    static final int MAX_BATCH_CHARS = 16 * 1024;
+    static final long LINGER_MILLIS = 50;
+
+    private final SyncCore plugin;
+    private final CommandPacket request;
+    private final boolean gather;
+    // All guarded by this
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+    private List<String> buffered = new ArrayList<>();
+    private int bufferedChars;
+    private boolean flushScheduled;
+    private boolean finished;
+    private boolean done;
+
+    public CommandOutput(SyncCore plugin, CommandPacket request) {
+        this.plugin = plugin;
+        this.request = request;
+        this.gather = request.gather().get(false);
+    }
+
+    public synchronized void line(String msg) {
+        // A gathering sender stops listening once it is told the command is done
+        if (done) return;
+        buffered.add(msg);
+        bufferedChars += msg.length();
+        if (buffered.size() >= MAX_BATCH_LINES || bufferedChars >= MAX_BATCH_CHARS) {
+            send(response());
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            plugin.scheduleAsync(this::flush, LINGER_MILLIS);
+        }
+    }
+
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (!buffered.isEmpty()) send(response());
+    }
+
+    /**
+     * Sends what is buffered and tells the sender the command has finished, if it waits for that.
+     * <p>
+     * Lines printed afterwards are still sent to a sender which does not wait. One which waits is told {@value #LINGER_MILLIS}ms later, so it still receives lines printed shortly after the command returned, such as a reply on the next tick. Lines printed after that are dropped.
+     */
+    public synchronized void finish(CommandResult.Status status) {
+        if (finished) return;
+        finished = true;
+        if (!gather) {
+            if (!buffered.isEmpty()) send(response());
+            return;
+        }
+        plugin.scheduleAsync(() -> done(status), LINGER_MILLIS);
+    }
+
+    private synchronized void done(CommandResult.Status status) {
+        done = true;
+        CommandPacket response = response();
+        response.done().set(true);
+        response.status().set(status.serialize());
+        send(response);
+    }
+
+    /**
+     * Takes the buffered lines into a response. Must be synchronized on this.
+     */
+    private CommandPacket response() {
+        CommandPacket response = request.createResponse(new JSONObject());
+        if (!buffered.isEmpty()) {
+            // Senders which do not gather show each response as a message
+            if (gather) response.lines().set(buffered);
+            else response.msg().set(String.join("\n", buffered));
+        }
+        buffered = new ArrayList<>();
+        bufferedChars = 0;
+        return response;
+    }
+
+    /**
+     * Must be synchronized on this
+     */
+    private void send(CommandPacket response) {
+        // Chained, so responses are sent one at a time and in order
+        last = last.thenRunAsync(() -> {
+            try {
+                plugin.getSync().send(response);
+            } catch (Exception e) {
+                plugin.print("Error sending command output", e);
+            }
+        }, plugin::runAsync);
+    }
+}
@@ -0,0 +1,47 @@
+package dev.heliosares.sync.net;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The outcome of a command on one server, see {@link SyncNetCore#executeCommand(java.util.Collection, String, long)}
+ *
+ * @param output        The lines the command printed, in order
+ * @param latencyMillis The time from sending the command until it finished or timed out
+ */
+public record CommandResult(String server, List<String> output, Status status, long latencyMillis) {
+    public enum Status {
+        /**
+         * The command ran
+         */
+        OK,
+        /**
+         * The server does not know the command, or it reported failure
+         */
+        FAILED,
+        /**
+         * The command threw an exception, or the player it should run as is not online
+         */
+        ERROR,
+        /**
+         * The server did not finish the command in time
+         */
+        TIMED_OUT,
+        /**
+         * The command could not be sent to the server
+         */
+        NOT_SENT;
+
+        static Status parse(String status) {
+            try {
+                return valueOf(status.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return ERROR;
+            }
+        }
+
+        String serialize() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package dev.heliosares.sync.net;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from {@code long} keys, used for pending responses by their response id. Keys are not boxed and lookups do not lock.
+ * <p>
+ * The map is split into segments by key, each an open-addressing table with its own lock for writes. A slot is never reused for another key, removed entries are only dropped when a segment is rebuilt, so a lookup can not see a value of a different key. Segments are rebuilt smaller once most of their entries are removed, so memory returns to a few kilobytes after a burst of requests.
+ */
+final class ConcurrentLongMap<V> {
+    private static final int SEGMENTS = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final Object REMOVED = new Object();
+
+    @SuppressWarnings("unchecked")
+    private final Segment<V>[] segments = new Segment[SEGMENTS];
+
+    ConcurrentLongMap() {
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment<>();
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment<V> segment(int hash) {
+        return segments[hash >>> 28];
+    }
+
+    @Nullable
+    V get(long key) {
+        int hash = hash(key);
+        return segment(hash).get(key, hash);
+    }
+
+    /**
+     * @return The previous value
+     */
+    @Nullable
+    V put(long key, V value) {
+        int hash = hash(key);
+        return segment(hash).put(key, hash, value);
+    }
+
+    @Nullable
+    V remove(long key) {
+        int hash = hash(key);
+        return segment(hash).remove(key, hash);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        /**
+         * null for an empty slot, {@link #REMOVED} for a removed entry. Written after the key, so a lookup that reads a value sees its key.
+         */
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+
+        private Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment<V> {
+        private volatile Table table = new Table(MIN_CAPACITY);
+        // Guarded by this
+        private int size;
+        /**
+         * Slots holding an entry or a removed entry
+         */
+        private int used;
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private V get(long key, int hash) {
+            Table table = this.table;
+            for (int i = hash & table.mask; ; i = (i + 1) & table.mask) {
+                Object value = table.values.get(i);
+                if (value == null) return null;
+                if (value != REMOVED && table.keys[i] == key) return (V) value;
+            }
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private synchronized V put(long key, int hash, V value) {
+            Table table = this.table;
+            int i = hash & table.mask;
+            for (Object current; (current = table.values.get(i)) != null; i = (i + 1) & table.mask) {
+                if (current != REMOVED && table.keys[i] == key) {
+                    table.values.set(i, value);
+                    return (V) current;
+                }
+            }
+            table.keys[i] = key;
+            table.values.set(i, value);
+            size++;
+            if (++used > table.keys.length * 3 / 4) rebuild();
+            return null;
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private synchronized V remove(long key, int hash) {
+            Table table = this.table;
+            for (int i = hash & table.mask; ; i = (i + 1) & table.mask) {
+                Object value = table.values.get(i);
+                if (value == null) return null;
+                if (value != REMOVED && table.keys[i] == key) {
+                    table.values.set(i, REMOVED);
+                    if (--size < table.keys.length / 8 && table.keys.length > MIN_CAPACITY) rebuild();
+                    return (V) value;
+                }
+            }
+        }
+
+        /**
+         * Copies the entries to a new table sized for them, dropping removed entries. Lookups on the old table stay correct until they finish.
+         */
+        private void rebuild() {
+            Table old = this.table;
+            int capacity = MIN_CAPACITY;
+            while (capacity < size * 2) capacity <<= 1;
+            Table table = new Table(capacity);
+            for (int i = 0; i < old.keys.length; i++) {
+                Object value = old.values.get(i);
+                if (value == null || value == REMOVED) continue;
+                int j = hash(old.keys[i]) & table.mask;
+                while (table.values.get(j) != null) j = (j + 1) & table.mask;
+                table.keys[j] = old.keys[i];
+                table.values.lazySet(j, value);
+            }
+            used = size;
+            this.table = table;
+        }
+    }
+}
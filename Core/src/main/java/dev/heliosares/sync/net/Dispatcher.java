@@ -0,0 +1,248 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncCore;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runs the handling of received packets on a bounded number of workers, shared by every connection of a plugin. A worker is a thread from {@link SyncCore#newThread(Runnable)} which waits for more tasks when none are left, so neither a burst of packets nor a trickle of them starts a thread per packet. Workers stop once idle for {@value #WORKER_IDLE_MILLIS}ms.
+ * <p>
+ * Tasks are grouped into lanes, one per sender and channel. Tasks in a lane run one at a time in the order they were dispatched, so a channel's packets are handled in the order they arrived, while different lanes run in parallel. Responses have a lane per sender of their own, so a handler waiting for a response does not hold it up.
+ * <p>
+ * If every worker is busy and none has finished a task for a while, handlers are probably waiting on each other and another worker is started, up to {@value #MAX_THREADS_FACTOR} times the configured number. This is only checked while tasks are queued.
+ */
+public final class Dispatcher {
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int MAX_THREADS_FACTOR = 4;
+    /**
+     * How many tasks a worker runs from one lane before giving other lanes a turn
+     */
+    private static final int LANE_BATCH = 32;
+    private static final long STALL_CHECK_MILLIS = 500;
+    private static final long WORKER_IDLE_MILLIS = 60000;
+    private static final Map<SyncCore, Dispatcher> dispatchers = new IdentityHashMap<>();
+    private static final Map<SyncCore, Dispatcher> writers = new IdentityHashMap<>();
+
+    private final SyncCore plugin;
+    private final Map<SyncCore, Dispatcher> registry;
+    private final String name;
+    private final int threads;
+    // All guarded by this
+    private final Map<Object, Lane> lanes = new HashMap<>();
+    private final ArrayDeque<Lane> ready = new ArrayDeque<>();
+    private int workers;
+    private int idleWorkers;
+    private long queued;
+    private long maxQueued;
+    private long completed;
+    private long completedAtLastCheck;
+    private boolean stallCheckScheduled;
+    private boolean closed;
+    private int references;
+
+    private Dispatcher(SyncCore plugin, Map<SyncCore, Dispatcher> registry, String name, int threads) {
+        this.plugin = plugin;
+        this.registry = registry;
+        this.name = name;
+        this.threads = threads;
+    }
+
+    /**
+     * @return The plugin's dispatcher. Must be released with {@link #release(Dispatcher)}.
+     */
+    static synchronized Dispatcher acquire(SyncCore plugin) {
+        return acquire(dispatchers, plugin, "dispatch");
+    }
+
+    /**
+     * @return The plugin's workers writing queued frames to connections, with a lane per connection. A connection only has a task here while it has frames to write. Must be released with {@link #release(Dispatcher)}.
+     */
+    static synchronized Dispatcher acquireWriters(SyncCore plugin) {
+        return acquire(writers, plugin, "write");
+    }
+
+    private static Dispatcher acquire(Map<SyncCore, Dispatcher> registry, SyncCore plugin, String name) {
+        Dispatcher dispatcher = registry.get(plugin);
+        if (dispatcher == null) {
+            registry.put(plugin, dispatcher = new Dispatcher(plugin, registry, name, Math.max(1, plugin.getDispatchThreads())));
+        }
+        dispatcher.references++;
+        return dispatcher;
+    }
+
+    static synchronized void release(@Nullable Dispatcher dispatcher) {
+        if (dispatcher == null || --dispatcher.references > 0) return;
+        dispatcher.registry.remove(dispatcher.plugin);
+        dispatcher.close();
+    }
+
+    /**
+     * Runs a task after all tasks previously dispatched for the same sender and channel.
+     */
+    public void dispatch(@Nullable String sender, @Nullable String channel, Runnable task) {
+        execute(new LaneKey(sender, channel, false), task);
+    }
+
+    /**
+     * Runs the handling of a response after all responses previously received from the same sender.
+     */
+    public void dispatchResponse(@Nullable String sender, Runnable task) {
+        execute(new LaneKey(sender, null, true), task);
+    }
+
+    /**
+     * Runs a task after all tasks previously given with an equal key.
+     */
+    void execute(Object key, Runnable task) {
+        synchronized (this) {
+            if (!closed) {
+                Lane lane = lanes.computeIfAbsent(key, Lane::new);
+                lane.tasks.add(task);
+                maxQueued = Math.max(maxQueued, ++queued);
+                scheduleStallCheck();
+                if (!lane.scheduled) {
+                    lane.scheduled = true;
+                    ready.add(lane);
+                    // Every idle worker is woken for at most one lane
+                    if (ready.size() <= idleWorkers) notify();
+                    else if (workers < threads) startWorker();
+                }
+                return;
+            }
+        }
+        plugin.runAsync(task);
+    }
+
+    private void startWorker() {
+        workers++;
+        plugin.newThread(this::work);
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while ((lane = ready.poll()) == null) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    // Workers started by the stall check stop as soon as there is nothing left for them
+                    if (closed || workers > threads || idle >= WORKER_IDLE_MILLIS) {
+                        workers--;
+                        return;
+                    }
+                    idleWorkers++;
+                    try {
+                        wait(WORKER_IDLE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        workers--;
+                        return;
+                    } finally {
+                        idleWorkers--;
+                    }
+                }
+            }
+            for (int i = 0; i < LANE_BATCH; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = lane.tasks.poll();
+                }
+                if (task == null) break;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    plugin.print("Error handling packet", t);
+                }
+                synchronized (this) {
+                    queued--;
+                    completed++;
+                }
+            }
+            synchronized (this) {
+                if (lane.tasks.isEmpty()) {
+                    lane.scheduled = false;
+                    lanes.remove(lane.key);
+                } else {
+                    ready.add(lane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be synchronized on this
+     */
+    private void scheduleStallCheck() {
+        if (stallCheckScheduled || closed) return;
+        stallCheckScheduled = true;
+        completedAtLastCheck = completed;
+        plugin.scheduleAsync(this::checkStalled, STALL_CHECK_MILLIS);
+    }
+
+    private synchronized void checkStalled() {
+        stallCheckScheduled = false;
+        if (closed) return;
+        if (!ready.isEmpty() && completed == completedAtLastCheck && workers < threads * MAX_THREADS_FACTOR) {
+            plugin.debug("All " + workers + " " + name + " workers are busy, starting another");
+            startWorker();
+        }
+        // Nothing to check once the queue is empty, the next task dispatched schedules it again
+        if (queued > 0) scheduleStallCheck();
+    }
+
+    private synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return The number of tasks dispatched but not yet finished
+     */
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return The highest {@link #getQueued()} has been
+     */
+    public synchronized long getMaxQueued() {
+        return maxQueued;
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return The number of lanes with tasks waiting or running
+     */
+    public synchronized int getActiveLanes() {
+        return lanes.size();
+    }
+
+    public synchronized int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Dispatcher{name=" + name + ", workers=" + workers + ", lanes=" + lanes.size() + ", queued=" + queued + ", maxQueued=" + maxQueued + ", completed=" + completed + "}";
+    }
+
+    private record LaneKey(@Nullable String sender, @Nullable String channel, boolean responses) {
+    }
+
+    private static final class Lane {
+        private final Object key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        private Lane(Object key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.BlobPacket;
+import dev.heliosares.sync.net.packet.Packet;
+
+import javax.annotation.Nullable;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A packet on its way to one or more connections. The packet is encoded (and compressed, if needed) at most once per {@link PacketCodec} and the plaintext is reused for every recipient, so only encryption is repeated per connection.
+ * <p>
+ * The packet must not be modified while it is being sent.
+ */
+final class EncodedPacket {
+    private Packet packet;
+    private final Map<PacketCodec, byte[]> encoded = new IdentityHashMap<>(2);
+    private final Map<PacketCodec, byte[]> compressed = new IdentityHashMap<>(2);
+    @Nullable
+    private final PacketCodec relayedCodec;
+    @Nullable
+    private final byte[] relayedBlob;
+
+    EncodedPacket(Packet packet) {
+        this.packet = packet;
+        this.relayedCodec = null;
+        this.relayedBlob = null;
+    }
+
+    private EncodedPacket(PacketCodec codec, byte[] frame, @Nullable byte[] blob) {
+        this.encoded.put(codec, frame);
+        this.relayedCodec = codec;
+        this.relayedBlob = blob;
+    }
+
+    /**
+     * A frame which is passed on exactly as received, see {@link BinaryPacketCodec#relay(byte[], BinaryPacketCodec.Header, String)}. The packet is only decoded if a recipient uses a different codec.
+     *
+     * @param codec The codec of the frame
+     * @param frame The rewritten frame
+     * @param blob  The blob frame following it, if the codec does not embed blobs and the packet has one
+     */
+    static EncodedPacket relayed(PacketCodec codec, byte[] frame, @Nullable byte[] blob) {
+        return new EncodedPacket(codec, frame, blob);
+    }
+
+    /**
+     * @return Whether this is a relayed frame which can be sent as it is to a connection using the given codec
+     */
+    boolean isRelayedAs(PacketCodec codec) {
+        return relayedCodec == codec;
+    }
+
+    /**
+     * @return The blob frame of a relayed packet, or null
+     */
+    @Nullable
+    byte[] relayedBlob() {
+        return relayedBlob;
+    }
+
+    synchronized Packet packet() {
+        if (packet == null) {
+            packet = relayedCodec.decode(encoded.get(relayedCodec));
+            if (packet instanceof BlobPacket blobPacket && relayedBlob != null) blobPacket.setBlob(relayedBlob);
+        }
+        return packet;
+    }
+
+    /**
+     * @return The plaintext of this packet in the given codec. Must not be modified.
+     */
+    synchronized byte[] encode(PacketCodec codec) {
+        return encoded.computeIfAbsent(codec, c -> c.encode(packet()));
+    }
+
+    /**
+     * @return The plaintext in the given codec, compressed. See {@link FrameCompression}.
+     */
+    synchronized byte[] compress(PacketCodec codec) {
+        return compressed.computeIfAbsent(codec, c -> FrameCompression.compress(encode(c)));
+    }
+}
@@ -0,0 +1,48 @@
+package dev.heliosares.sync.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of frames, used from protocol version {@value #PROTOCOL_VERSION}. The plaintext is compressed before it is encrypted, and compressed frames are marked by the highest bit of their length prefix. That bit is never set otherwise because frames are limited to {@value SocketConnection#MAX_FRAME_SIZE} bytes.
+ * <p>
+ * Either endpoint may choose not to compress, see {@link dev.heliosares.sync.SyncCore#getCompressionThreshold()}. Receiving compressed frames is always supported.
+ */
+public final class FrameCompression {
+    public static final int PROTOCOL_VERSION = 5;
+    public static final int DEFAULT_THRESHOLD = 1024;
+    static final int FLAG_COMPRESSED = 1 << 31;
+
+    private FrameCompression() {
+    }
+
+    static byte[] compress(byte[] plain) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param maxSize The largest plaintext to accept, so a small frame can not expand to an arbitrary size
+     */
+    static byte[] decompress(byte[] compressed, int maxSize) throws IOException {
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] plain = in.readNBytes(maxSize + 1);
+            if (plain.length > maxSize) throw new IOException("Decompressed frame too large (>" + maxSize + ")");
+            return plain;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.MalformedPacketException;
+import dev.heliosares.sync.net.packet.Packet;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The legacy wire format. Packets are sent as compact JSON, see {@link Packet#toJSON()}.
+ */
+public class JSONPacketCodec implements PacketCodec {
+    JSONPacketCodec() {
+    }
+
+    @Override
+    public byte[] encode(Packet packet) {
+        return packet.toJSON(true).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Packet decode(byte[] data) throws MalformedPacketException {
+        String packetString = new String(data, StandardCharsets.UTF_8);
+        try {
+            return PacketType.getPacketFromJSON(new JSONObject(packetString));
+        } catch (JSONException e) {
+            throw new MalformedPacketException("Non-JSON packet received: " + packetString);
+        }
+    }
+}
@@ -2,14 +2,19 @@ package dev.heliosares.sync.net;
 
 import dev.heliosares.sync.SyncCore;
 import dev.heliosares.sync.net.packet.Packet;
-import dev.kshl.kshlib.concurrent.ConcurrentCollection;
 
-import java.util.ArrayList;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 
 public final class NetEventHandler {
 
-    private final ConcurrentCollection<ArrayList<EventHandler>, EventHandler> listeners = new ConcurrentCollection<>(new ArrayList<>());
+    /**
+     * Listeners by the type and channel they listen to. Replaced as a whole on registration, so receiving packets never locks.
+     */
+    private volatile Map<Key, EventHandler[]> listeners = Map.of();
     private final SyncCore plugin;
 
     public NetEventHandler(SyncCore plugin) {
@@ -26,24 +31,41 @@ public final class NetEventHandler {
         if (channel != null && !channel.matches("\\w+:[\\w-]+")) {
             throw new IllegalArgumentException("Channel name must conform to 'PluginName:Channel', '" + channel + "' does not");
         }
-        listeners.consume(listeners -> listeners.add(new EventHandler(type, channel, consumer)));
+        Key key = new Key(type, channel);
+        synchronized (this) {
+            Map<Key, EventHandler[]> copy = new HashMap<>(listeners);
+            EventHandler[] handlers = copy.getOrDefault(key, new EventHandler[0]);
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            handlers[handlers.length - 1] = new EventHandler(type, channel, consumer);
+            copy.put(key, handlers);
+            listeners = copy;
+        }
     }
 
     public void unregisterChannel(String channel) {
-        listeners.consume(listeners -> listeners.removeIf(netListener -> Objects.equals(channel, netListener.channel())));
+        synchronized (this) {
+            Map<Key, EventHandler[]> copy = new HashMap<>(listeners);
+            if (copy.keySet().removeIf(key -> Objects.equals(channel, key.channel()))) listeners = copy;
+        }
     }
 
-    void execute(String server, Packet packet) {
-        listeners.forEach(handler -> {
-            if (!Objects.equals(packet.getChannel(), handler.channel())) return;
-            if (packet.getType() != handler.type()) return;
+    /**
+     * @return Whether a packet of this type and channel would be passed to any listener
+     */
+    boolean hasListener(PacketType type, String channel) {
+        return listeners.containsKey(new Key(type, channel));
+    }
 
+    void execute(String server, Packet packet) {
+        EventHandler[] handlers = listeners.get(new Key(packet.getType(), packet.getChannel()));
+        if (handlers == null) return;
+        for (EventHandler handler : handlers) {
             try {
                 handler.d.execute(server, packet);
             } catch (Throwable t) {
                 plugin.print("Failed to pass " + packet + " to " + handler.channel(), t);
             }
-        });
+        }
     }
 
     @FunctionalInterface
@@ -57,4 +79,7 @@ public final class NetEventHandler {
 
     record EventHandler(PacketType type, String channel, PacketConsumer d) {
     }
-}
\ No newline at end of file
+
+    private record Key(PacketType type, @Nullable String channel) {
+    }
+}
@@ -0,0 +1,160 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncCore;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of selector threads shared by every {@link NioTransport} of a plugin, so the number of threads does not grow with the number of connections.
+ * <p>
+ * Groups are shared between the proxy connection, the P2P server and the P2P clients of a plugin and closed when the last of them releases it.
+ */
+final class NioEventLoopGroup {
+    private static final Map<SyncCore, NioEventLoopGroup> groups = new IdentityHashMap<>();
+
+    private final SyncCore plugin;
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private int references;
+
+    private NioEventLoopGroup(SyncCore plugin, int threads) throws IOException {
+        this.plugin = plugin;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            plugin.newThread(loops[i]);
+        }
+    }
+
+    /**
+     * @return The plugin's group, or null if it uses blocking sockets. Must be released with {@link #release(NioEventLoopGroup)}.
+     */
+    @Nullable
+    static synchronized NioEventLoopGroup acquire(SyncCore plugin) throws IOException {
+        int threads = plugin.getNetworkThreads();
+        if (threads <= 0) return null;
+        NioEventLoopGroup group = groups.get(plugin);
+        if (group == null) groups.put(plugin, group = new NioEventLoopGroup(plugin, threads));
+        group.references++;
+        return group;
+    }
+
+    static synchronized void release(@Nullable NioEventLoopGroup group) {
+        if (group == null || --group.references > 0) return;
+        groups.remove(group.plugin);
+        for (EventLoop loop : group.loops) loop.close();
+    }
+
+    /**
+     * Takes over an open channel. The channel is made non-blocking.
+     */
+    NioTransport register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        return new NioTransport(channel, loop);
+    }
+
+    NioTransport connect(String host, int port) throws IOException {
+        // Connecting blocks, same as for a Socket
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            return register(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for channels to become readable or writable and passes that on to their transport. Runs on its own thread until closed.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+        private volatile boolean closed;
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (!closed) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioTransport transport = (NioTransport) key.attachment();
+                        if (key.isValid() && key.isReadable()) transport.onReadable();
+                        if (key.isValid() && key.isWritable()) transport.onWritable();
+                    }
+                }
+            } catch (ClosedSelectorException ignored) {
+            } catch (Throwable t) {
+                plugin.print("Network thread crashed", t);
+            } finally {
+                closed = true;
+                try {
+                    for (SelectionKey key : selector.keys()) ((NioTransport) key.attachment()).close();
+                    selector.close();
+                } catch (Throwable ignored) {
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+            }
+        }
+
+        SelectionKey register(SocketChannel channel, NioTransport transport) throws IOException {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ, transport);
+            selector.wakeup();
+            return key;
+        }
+
+        /**
+         * Runs a task on this loop, or immediately if the loop has stopped.
+         */
+        void execute(Runnable task) {
+            if (closed) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            selector.wakeup();
+            // Closed in the meantime, the loop may not run it
+            if (closed && tasks.remove(task)) task.run();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+}
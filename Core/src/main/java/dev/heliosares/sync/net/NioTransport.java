@@ -0,0 +1,267 @@
+package dev.heliosares.sync.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A non-blocking channel served by an event loop of a {@link NioEventLoopGroup}. Frames are reassembled from whatever the channel has available, so no thread waits on a connection.
+ * <p>
+ * Until {@link #readAsync(FrameListener)} is called, received frames are queued for {@link #read()}, which is what the handshake uses. Writes are attempted on the calling thread and left to the event loop if the channel is not ready.
+ */
+final class NioTransport implements Transport {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Flushing blocks while more than this many bytes are waiting for the channel
+     */
+    private static final long MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final NioEventLoopGroup.EventLoop loop;
+    private final SelectionKey key;
+    private final String remoteAddress;
+    private volatile boolean closed;
+
+    // Only used by the event loop
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer prefix = ByteBuffer.allocate(4);
+    private ByteBuffer body;
+    private boolean bodyCompressed;
+    private FrameListener listener;
+    private boolean ended;
+
+    // Frames received before there is a listener, guarded by itself
+    private final ArrayDeque<Frame> received = new ArrayDeque<>();
+    private IOException failure;
+
+    // Guarded by itself
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+
+    NioTransport(SocketChannel channel, NioEventLoopGroup.EventLoop loop) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.key = loop.register(channel, this);
+    }
+
+    void onReadable() {
+        try {
+            if (body != null && body.remaining() >= READ_BUFFER_SIZE) {
+                // Large frames skip the read buffer, which is empty while a body is incomplete
+                if (channel.read(body) < 0) throw new EOFException();
+                if (!body.hasRemaining()) {
+                    Frame frame = new Frame(body.array(), bodyCompressed);
+                    body = null;
+                    deliver(frame);
+                }
+                return;
+            }
+            int read = channel.read(readBuffer);
+            if (read < 0) throw new EOFException();
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closed) {
+                if (body == null) {
+                    transfer(readBuffer, prefix);
+                    if (prefix.hasRemaining()) break;
+                    int value = prefix.flip().getInt();
+                    prefix.clear();
+                    body = ByteBuffer.allocate(Transport.frameLength(value));
+                    bodyCompressed = (value & FrameCompression.FLAG_COMPRESSED) != 0;
+                }
+                transfer(readBuffer, body);
+                if (body.hasRemaining()) break;
+                Frame frame = new Frame(body.array(), bodyCompressed);
+                body = null;
+                deliver(frame);
+            }
+            readBuffer.compact();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        to.put(to.position(), from, from.position(), count);
+        to.position(to.position() + count);
+        from.position(from.position() + count);
+    }
+
+    private void deliver(Frame frame) throws Exception {
+        if (listener != null) {
+            listener.frame(frame);
+            return;
+        }
+        synchronized (received) {
+            received.add(frame);
+            received.notifyAll();
+        }
+    }
+
+    @Override
+    public Frame read() throws IOException {
+        synchronized (received) {
+            while (received.isEmpty()) {
+                if (failure != null) throw failure;
+                if (closed) throw new SocketException("Socket closed");
+                try {
+                    received.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return received.poll();
+        }
+    }
+
+    @Override
+    public boolean isNonBlocking() {
+        return true;
+    }
+
+    @Override
+    public void readAsync(FrameListener listener) {
+        loop.execute(() -> {
+            // Frames are only received on the event loop, so none can arrive in between
+            List<Frame> queued;
+            Exception cause;
+            synchronized (received) {
+                queued = new ArrayList<>(received);
+                received.clear();
+                cause = failure != null ? failure : closed ? new SocketException("Socket closed") : null;
+            }
+            this.listener = listener;
+            try {
+                for (Frame frame : queued) listener.frame(frame);
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            if (cause != null) end(cause);
+        });
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return loop.inEventLoop();
+    }
+
+    @Override
+    public void write(Frame frame) {
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(0, Transport.prefix(frame));
+        synchronized (pending) {
+            pending.add(header);
+            pending.add(ByteBuffer.wrap(frame.data()));
+            pendingBytes += 4 + frame.data().length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (pending) {
+            writePending();
+            if (pending.isEmpty()) return;
+            try {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                throw new SocketException("Socket closed");
+            }
+            loop.wakeup();
+            while (pendingBytes > MAX_PENDING_BYTES && !closed && !loop.inEventLoop()) {
+                try {
+                    pending.wait(1000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) throw new SocketException("Socket closed");
+        }
+    }
+
+    /**
+     * Writes as much as the channel accepts without blocking. Must be synchronized on {@link #pending}.
+     */
+    private void writePending() throws IOException {
+        while (!pending.isEmpty()) {
+            long written = channel.write(pending.toArray(ByteBuffer[]::new));
+            pendingBytes -= written;
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) pending.poll();
+            if (written == 0) break;
+        }
+    }
+
+    void onWritable() {
+        Exception error = null;
+        synchronized (pending) {
+            try {
+                writePending();
+                if (pending.isEmpty()) key.interestOps(SelectionKey.OP_READ);
+            } catch (Exception e) {
+                error = e;
+            }
+            pending.notifyAll();
+        }
+        if (error != null) fail(error);
+    }
+
+    private void fail(Exception e) {
+        synchronized (received) {
+            if (failure == null) failure = e instanceof IOException io ? io : new IOException(e);
+            received.notifyAll();
+        }
+        closeChannel();
+        if (listener != null) end(e);
+    }
+
+    /**
+     * Notifies the listener, only once. Must be called on the event loop.
+     */
+    private void end(Exception cause) {
+        if (ended) return;
+        ended = true;
+        listener.closed(cause);
+    }
+
+    private void closeChannel() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closeChannel();
+        synchronized (received) {
+            received.notifyAll();
+        }
+        loop.execute(() -> {
+            if (listener != null) end(new SocketException("Socket closed"));
+        });
+    }
+}
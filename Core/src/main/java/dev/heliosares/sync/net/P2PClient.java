@@ -15,12 +15,14 @@ import java.util.concurrent.TimeoutException;
 public class P2PClient extends SyncClient {
     private final SyncCore plugin;
     private final String partnerName;
+    private final int protocolVersion;
 
-    public P2PClient(SyncCore plugin, String partnerName) {
+    public P2PClient(SyncCore plugin, String partnerName, int partnerProtocolVersion) {
         super(plugin, null, null, false);
 
         this.plugin = plugin;
         this.partnerName = partnerName;
+        this.protocolVersion = Math.min(partnerProtocolVersion, Integer.parseInt(PROTOCOL_VERSION));
     }
 
     @Override
@@ -29,6 +31,7 @@ public class P2PClient extends SyncClient {
 
         String context = new String(connection.readRaw());
         plugin.debug("Received context=" + context);
+        connection.setProtocolVersion(protocolVersion);
 
         CompletableFuture<Void> completable = new CompletableFuture<>();
         plugin.getSync().getEventHandler().registerListener(PacketType.P2P_AUTH, "Sync:" + context, (server, packet) -> {
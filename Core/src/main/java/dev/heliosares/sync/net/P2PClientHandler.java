@@ -7,10 +7,8 @@ import org.json.JSONObject;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
-import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
@@ -19,8 +17,8 @@ public class P2PClientHandler extends ServerClientHandler {
     private final SyncCore plugin;
     private final SyncClient syncClient;
 
-    P2PClientHandler(SyncCore plugin, SyncServer server, Socket socket, Supplier<IDProvider> idProviderSupplier) throws IOException {
-        super(plugin, server, socket, null, idProviderSupplier);
+    P2PClientHandler(SyncCore plugin, SyncServer server, Transport transport, Supplier<IDProvider> idProviderSupplier) {
+        super(plugin, server, transport, null, idProviderSupplier);
 
         this.plugin = plugin;
         this.syncClient = (SyncClient) plugin.getSync();
@@ -48,6 +46,7 @@ public class P2PClientHandler extends ServerClientHandler {
             throw new GeneralSecurityException("Client does not have write permissions: " + getName());
         }
         writePermission = true;
+        setProtocolVersion(syncClient.getP2PProtocolVersion(getName()));
         String context = UUID.randomUUID().toString().replace("-", "");
         plugin.debug("Sending context=" + context);
         sendRaw(context.getBytes());
@@ -58,10 +57,8 @@ public class P2PClientHandler extends ServerClientHandler {
         SecretKey aes = EncryptionAES.generateRandomKey();
         setEncryption(new EncryptionAES(aes));
         authPacket.setBlob(getEncryption().encodeKey());
-        CompletableFuture<Short> connectionID = new CompletableFuture<>();
-        plugin.getSync().send(getName(), authPacket, resp -> connectionID.complete(resp.getResponseID().connectionID()));
         try {
-            this.connectionID = connectionID.get();
+            this.connectionID = plugin.getSync().request(getName(), authPacket, 3000L).get().getResponseID().connectionID();
         } catch (InterruptedException | ExecutionException e) {
             throw new IOException("Failed to get connection ID", e);
         }
@@ -2,8 +2,6 @@ package dev.heliosares.sync.net;
 
 import dev.heliosares.sync.SyncCore;
 
-import java.io.IOException;
-import java.net.Socket;
 import java.util.Map;
 import java.util.function.Supplier;
 
@@ -20,7 +18,7 @@ public class P2PServer extends SyncServer {
     }
 
     @Override
-    protected ServerClientHandler accept(Socket socket) throws IOException {
-        return new P2PClientHandler(plugin, this, socket, idProviderSupplier);
+    protected ServerClientHandler accept(Transport transport) {
+        return new P2PClientHandler(plugin, this, transport, idProviderSupplier);
     }
 }
@@ -1,4 +1,4 @@
 package dev.heliosares.sync.net;
 
-record P2PServerData(String host, int port, P2PClient client, boolean write) {
+record P2PServerData(String host, int port, P2PClient client, boolean write, int protocol) {
 }
@@ -0,0 +1,58 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncAPI;
+import dev.heliosares.sync.net.packet.MalformedPacketException;
+import dev.heliosares.sync.net.packet.Packet;
+
+/**
+ * Converts packets to and from the plaintext of a frame. Which codec a connection uses is determined by the protocol version negotiated during the handshake.
+ */
+public interface PacketCodec {
+    /**
+     * The first protocol version which uses {@link BinaryPacketCodec}. Older peers fall back to {@link JSONPacketCodec}.
+     */
+    int BINARY_PROTOCOL_VERSION = 4;
+    /**
+     * The first protocol version which carries the blob of a {@link dev.heliosares.sync.net.packet.BlobPacket} in the same frame as the packet.
+     */
+    int BLOB_IN_FRAME_PROTOCOL_VERSION = 6;
+
+    PacketCodec JSON = new JSONPacketCodec();
+    /**
+     * The binary format of protocol versions {@value #BINARY_PROTOCOL_VERSION} and 5, which send blobs as a separate frame.
+     */
+    PacketCodec BINARY_SEPARATE_BLOB = new BinaryPacketCodec(false);
+    PacketCodec BINARY = new BinaryPacketCodec(true);
+
+    byte[] encode(Packet packet);
+
+    Packet decode(byte[] data) throws MalformedPacketException;
+
+    /**
+     * @return Whether blobs are part of the encoded packet. Otherwise, they are sent as a separate frame following it.
+     */
+    default boolean embedsBlob() {
+        return false;
+    }
+
+    static PacketCodec forProtocolVersion(int protocolVersion) {
+        if (protocolVersion >= BLOB_IN_FRAME_PROTOCOL_VERSION) return BINARY;
+        if (protocolVersion >= BINARY_PROTOCOL_VERSION) return BINARY_SEPARATE_BLOB;
+        return JSON;
+    }
+
+    /**
+     * @param otherVersion The protocol version sent by the other endpoint
+     * @return The highest protocol version supported by both endpoints, or -1 if there is none
+     */
+    static int negotiate(String otherVersion) {
+        int other;
+        try {
+            other = Integer.parseInt(otherVersion.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (other < Integer.parseInt(SyncAPI.MIN_PROTOCOL_VERSION)) return -1;
+        return Math.min(other, Integer.parseInt(SyncAPI.PROTOCOL_VERSION));
+    }
+}
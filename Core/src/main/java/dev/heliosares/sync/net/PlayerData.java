@@ -11,14 +11,15 @@ import org.json.JSONObject;
 
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
-import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -36,19 +37,28 @@ public class PlayerData {
         private final boolean isFinal;
         private T value;
         private long lastUpdated;
+        // The value the network last knew of, and when this server sent it. Guarded by this
+        private T lastSent;
+        private long lastSentMillis;
+        // Results of changes held back by the sync policy, or null if none are
+        private List<CompletableFuture<Boolean>> held;
 
         protected Variable(String name, T def, boolean isFinal) {
             this.name = name;
             this.nameOnly = name.substring(name.lastIndexOf(".") + 1);
             this.isFinal = isFinal;
             value = def;
+            lastSent = def;
+            synchronized (PlayerData.this) {
+                changeDigest(digest(def));
+            }
         }
 
         /**
-         * Sets the value of the variable and sends an update packet. Can be called sync or async.
+         * Sets the value of the variable and marks it to be sent with the next batch of updates. Can be called sync or async.
          *
          * @param value The value to set
-         * @return whether the update packet was sent successfully. If not, the set operation fails.
+         * @return whether the batch containing the update was sent successfully. If not, the set operation fails.
          */
         @SuppressWarnings("UnusedReturnValue")
         public final CompletableFuture<Boolean> set(T value) {
@@ -59,32 +69,65 @@ public class PlayerData {
                 throw new IllegalArgumentException(name + " is final.");
             }
             CompletableFuture<Boolean> result = new CompletableFuture<>();
-            if (Objects.equals(get(), value)) {
+            if (equalsValue(value)) {
                 result.complete(true);
-            } else plugin.runAsync(() -> {
-                T originalValue = get();
-
-                setValueWithoutUpdate(value);
-
-                JSONObject o = new JSONObject();
-                PlayerData.this.uuid.putJSON(o);
-                o.put("update", name);
-                putJSON(o);
-
-                try {
-                    plugin.getSync().getUserManager().sendUpdatePacket(o);
-                    result.complete(true);
-                    return;
-                } catch (IOException e) {
-                    plugin.print(null, e);
-                }
-
-                set(originalValue);
-                result.complete(false);
+                return result;
+            }
+            T originalValue = get();
+            setValueWithoutUpdate(value);
+            UserManager userManager = plugin.getSync().getUserManager();
+            SyncPolicy policy = userManager.getSyncPolicy(name);
+            if (policy != null && hold(policy, value, result)) return result;
+            userManager.markDirty(PlayerData.this, this, result, () -> {
+                // Only undo this set, not a later one
+                if (get() == value) setValueWithoutUpdate(originalValue);
             });
             return result;
         }
 
+        /**
+         * @return whether the change is held back, to be sent by {@link #sendHeld()}
+         */
+        private synchronized boolean hold(SyncPolicy policy, T value, CompletableFuture<Boolean> result) {
+            long now = System.currentTimeMillis();
+            boolean withinDeadband = policy.isWithinDeadband(lastSent, value);
+            if (held == null && !withinDeadband && now - lastSentMillis >= policy.minIntervalMillis()) {
+                lastSent = value;
+                lastSentMillis = now;
+                return false;
+            }
+            if (held == null) {
+                held = new ArrayList<>();
+                // Small changes wait a full interval for more to send with them
+                long delay = withinDeadband ? policy.minIntervalMillis() : lastSentMillis + policy.minIntervalMillis() - now;
+                plugin.scheduleAsync(this::sendHeld, Math.max(0, delay));
+            }
+            held.add(result);
+            return true;
+        }
+
+        private void sendHeld() {
+            List<CompletableFuture<Boolean>> held;
+            boolean changed;
+            synchronized (this) {
+                held = this.held;
+                this.held = null;
+                changed = !equalsValue(lastSent);
+                if (changed) {
+                    lastSent = get();
+                    lastSentMillis = System.currentTimeMillis();
+                }
+            }
+            if (!changed) {
+                held.forEach(result -> result.complete(true));
+                return;
+            }
+            CompletableFuture<Boolean> sent = new CompletableFuture<>();
+            sent.thenAccept(success -> held.forEach(result -> result.complete(success)));
+            plugin.getSync().getUserManager().markDirty(PlayerData.this, this, sent, () -> {
+            });
+        }
+
         protected boolean isAssignableByClients() {
             if (this.equals(server)) return false;
             if (this.equals(alts)) return false;
@@ -93,8 +136,24 @@ public class PlayerData {
         }
 
         void setValueWithoutUpdate(@Nullable T value) {
-            this.value = value;
-            this.lastUpdated = System.currentTimeMillis();
+            synchronized (PlayerData.this) {
+                T old = this.value;
+                this.value = value;
+                this.lastUpdated = System.currentTimeMillis();
+                changeDigest(digest(value) - digest(old));
+            }
+        }
+
+        /**
+         * Unlike {@link #hashCode()}, the same on every server for the same value. Null counts for nothing, so creating a variable does not change the digest.
+         */
+        private long digest(@Nullable T value) {
+            if (value == null) return 0;
+            return mix(name.hashCode() * 31L + valueHash(value));
+        }
+
+        protected int valueHash(T value) {
+            return value.hashCode();
         }
 
         public T get() {
@@ -129,13 +188,42 @@ public class PlayerData {
             o.put(nameOnly, value);
         }
 
+        /**
+         * @return The value as it is sent in an update batch. Since the batch sends the latest value, changes held back since then need not be sent again.
+         */
+        final Object toJSONValue() {
+            T value = get();
+            synchronized (this) {
+                lastSent = value;
+            }
+            if (value == null) return JSONObject.NULL;
+            JSONObject o = new JSONObject();
+            putJSON(o);
+            return o.opt(nameOnly);
+        }
+
+        /**
+         * Converts the value first, so it can be applied together with the rest of a batch.
+         */
+        final Runnable prepareUpdate(@Nullable Object o) {
+            T value = o == null ? null : processVariable(o);
+            return () -> received(value);
+        }
+
         protected final void processJSON(JSONObject o) {
             if (!o.has(nameOnly)) return;
             processVariable_(o.get(nameOnly));
         }
 
         protected final void processVariable_(@Nullable Object o) {
-            setValueWithoutUpdate(o == null ? null : processVariable(o));
+            received(o == null ? null : processVariable(o));
+        }
+
+        private void received(@Nullable T value) {
+            setValueWithoutUpdate(value);
+            synchronized (this) {
+                lastSent = value;
+            }
         }
 
         protected abstract T processVariable(Object o) throws IllegalArgumentException;
@@ -197,6 +285,11 @@ public class PlayerData {
         public boolean equalsValue(byte[] other) {
             return Arrays.equals(get(), other);
         }
+
+        @Override
+        protected int valueHash(byte[] value) {
+            return Arrays.hashCode(value);
+        }
     }
 
     public final class VariableUUID extends Variable<UUID> {
@@ -394,6 +487,10 @@ public class PlayerData {
     private final MapOfVariables<VariableBoolean> customBooleans;
     private final MapOfVariables<VariableBlob> customBlobs;
     private final ConcurrentMap<HashMap<String, MapOfVariables<?>>, String, MapOfVariables<?>> customMaps = new ConcurrentMap<>(new HashMap<>());
+    // Sum of every variable's digest, and the manager it is counted in. Both guarded by this
+    private long digest;
+    @Nullable
+    private UserManager userManager;
 
     PlayerData(SyncCore plugin, String server, String name, UUID uuid, boolean vanished) {
         this.plugin = plugin;
@@ -450,9 +547,34 @@ public class PlayerData {
     }
 
     protected void handleUpdate(String field, JSONObject payload) {
-        String nameOnly = field;
-        for (int i = 0; i < 2; i++) nameOnly = nameOnly.substring(nameOnly.indexOf(".") + 1);
+        if (field.startsWith("custom.")) {
+            MapOfVariables<?> map = customMaps.get(field.split("\\.")[1]);
+            if (map != null) map.processJSON(payload);
+        }
+        getVariable(field).processVariable_(payload.opt(getNameOnly(field)));
+    }
+
+    /**
+     * @param value The value from an update batch, see {@link Variable#toJSONValue()}
+     * @return Applies the update
+     * @throws IllegalArgumentException If the field does not exist or the value is not valid for it
+     */
+    Runnable prepareUpdate(String field, Object value) {
+        return getVariable(field).prepareUpdate(value == JSONObject.NULL ? null : value);
+    }
 
+    /**
+     * @param value The value from an update batch, see {@link Variable#toJSONValue()}
+     * @return The same update as the single update payload servers before {@link UserManager#BATCH_PROTOCOL_VERSION} understand, see {@link #handleUpdate(String, JSONObject)}
+     */
+    static JSONObject toLegacyUpdate(String uuid, String field, Object value) {
+        JSONObject o = new JSONObject().put("uuid", uuid).put("update", field);
+        // Null values were left out
+        if (value != JSONObject.NULL) o.put(getNameOnly(field), value);
+        return o;
+    }
+
+    private Variable<?> getVariable(String field) {
         Variable<?> variable;
         if (field.startsWith("custom.")) {
             String key = field.split("\\.")[1];
@@ -460,14 +582,18 @@ public class PlayerData {
             if (map == null) {
                 throw new IllegalArgumentException("Invalid variable type '" + key + "' for field " + field);
             }
-            map.processJSON(payload);
-            variable = map.computeIfAbsent(nameOnly);
+            variable = map.computeIfAbsent(getNameOnly(field));
         } else {
             variable = internalVariables.get(field);
         }
         if (variable == null) throw new IllegalArgumentException("Invalid field to update: " + field);
+        return variable;
+    }
 
-        variable.processVariable_(payload.opt(nameOnly));
+    private static String getNameOnly(String field) {
+        String nameOnly = field;
+        for (int i = 0; i < 2; i++) nameOnly = nameOnly.substring(nameOnly.indexOf(".") + 1);
+        return nameOnly;
     }
 
     @Override
@@ -510,6 +636,54 @@ public class PlayerData {
         return internalVariables.hashCode() ^ customMaps.hashCode();
     }
 
+    /**
+     * Counts this player's digest in the manager's, see {@link UserManager#getDigest()}, until set to another or null
+     */
+    synchronized void setUserManager(@Nullable UserManager userManager) {
+        if (this.userManager != null) this.userManager.addDigest(getUUID(), -managerDigest());
+        this.userManager = userManager;
+        if (userManager != null) userManager.addDigest(getUUID(), managerDigest());
+    }
+
+    /**
+     * Must be synchronized on this
+     */
+    private void changeDigest(long delta) {
+        if (delta == 0) return;
+        if (userManager == null) {
+            digest += delta;
+            return;
+        }
+        long old = managerDigest();
+        digest += delta;
+        userManager.addDigest(getUUID(), managerDigest() - old);
+    }
+
+    /**
+     * @return What this player adds to the manager's digest
+     */
+    synchronized long getDigest() {
+        return managerDigest();
+    }
+
+    /**
+     * Mixed with the UUID, so two players swapping values still changes the manager's digest
+     */
+    private long managerDigest() {
+        UUID uuid = getUUID();
+        long uuidDigest = uuid == null ? 0 : mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        return mix(digest + uuidDigest);
+    }
+
+    /**
+     * Spreads the bits of the input, so sums of digests rarely collide
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
 
     @CheckReturnValue
     public String getServer() {
@@ -0,0 +1,68 @@
+package dev.heliosares.sync.net;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which packet ids of one sender have been received, like IPsec anti-replay. Ids more than the window's size behind the highest one received are rejected, ids within it are accepted once, in any order.
+ * <p>
+ * The window is a bitmap indexed by id modulo its size, so checking an id is constant time and allocates nothing.
+ */
+final class ReplayWindow {
+    private final long[] bits;
+    private final int size;
+    private long highest;
+    private boolean started;
+
+    /**
+     * @param size How far behind the highest id received an id may be, rounded up to a multiple of 64
+     */
+    ReplayWindow(int size) {
+        this.bits = new long[Math.max(1, (size + 63) / 64)];
+        this.size = bits.length * 64;
+    }
+
+    /**
+     * Marks an id as received.
+     *
+     * @return false if the id was already received or is too old to tell
+     */
+    boolean accept(long id) {
+        if (!started || id > highest) {
+            advance(id);
+            set(id);
+            return true;
+        }
+        if (highest - id >= size) return false;
+        int index = index(id);
+        long mask = 1L << index;
+        if ((bits[index >>> 6] & mask) != 0) return false;
+        bits[index >>> 6] |= mask;
+        return true;
+    }
+
+    private void advance(long id) {
+        if (!started || id - highest >= size) {
+            Arrays.fill(bits, 0);
+        } else {
+            for (long cleared = highest + 1; cleared <= id; cleared++) {
+                int index = index(cleared);
+                bits[index >>> 6] &= ~(1L << index);
+            }
+        }
+        started = true;
+        highest = id;
+    }
+
+    private void set(long id) {
+        int index = index(id);
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private int index(long id) {
+        return (int) Math.floorMod(id, (long) size);
+    }
+
+    long getHighest() {
+        return highest;
+    }
+}
@@ -0,0 +1,34 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.Packet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes a future with the first response to a request, see {@link SyncNetCore#request(String, Packet, long)}
+ */
+final class ResponseFuture extends ResponseHandler {
+    private final CompletableFuture<Packet> future = new CompletableFuture<>();
+    private final Packet request;
+
+    ResponseFuture(Packet request) {
+        this.request = request;
+        // Whether completed or cancelled, later responses are not needed
+        future.whenComplete((response, t) -> cancel());
+    }
+
+    @Override
+    public void accept(Packet packet) {
+        future.complete(packet);
+    }
+
+    @Override
+    void finished() {
+        future.completeExceptionally(new TimeoutException("No response to " + request.getType() + (request.getChannel() == null ? "" : " " + request.getChannel())));
+    }
+
+    CompletableFuture<Packet> future() {
+        return future;
+    }
+}
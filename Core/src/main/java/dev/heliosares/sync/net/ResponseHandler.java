@@ -0,0 +1,81 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A response consumer which is told when responses stop being accepted, and which can stop accepting them early.
+ * <p>
+ * A request sent to several servers is pending on a connection for each. {@link #finished()} is called once the last of them has expired.
+ */
+abstract class ResponseHandler implements Consumer<Packet> {
+    // All guarded by this
+    private final List<Runnable> cancelHooks = new ArrayList<>(1);
+    private int pending;
+    private boolean sent;
+    private boolean cancelled;
+    private boolean finished;
+
+    /**
+     * Called by a connection when it starts accepting responses for this handler.
+     *
+     * @param cancelHook Stops the connection accepting responses
+     */
+    final void register(Runnable cancelHook) {
+        synchronized (this) {
+            if (!cancelled) {
+                pending++;
+                cancelHooks.add(cancelHook);
+                return;
+            }
+        }
+        cancelHook.run();
+    }
+
+    /**
+     * Called by a connection when it stops accepting responses because the timeout has passed.
+     */
+    final void expired() {
+        synchronized (this) {
+            pending--;
+            if (!sent || pending > 0 || finished) return;
+            finished = true;
+        }
+        finished();
+    }
+
+    /**
+     * Called once the request has been passed to every connection it is sent on.
+     */
+    final void sent() {
+        synchronized (this) {
+            sent = true;
+            if (pending > 0 || finished || cancelled) return;
+            finished = true;
+        }
+        finished();
+    }
+
+    /**
+     * Stops accepting responses on every connection. {@link #finished()} is not called afterwards.
+     */
+    final void cancel() {
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            finished = true;
+            hooks = new ArrayList<>(cancelHooks);
+            cancelHooks.clear();
+        }
+        hooks.forEach(Runnable::run);
+    }
+
+    /**
+     * Called once no connection accepts responses anymore
+     */
+    abstract void finished();
+}
@@ -0,0 +1,156 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.Packet;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes every response to a request until it times out, see {@link SyncNetCore#requestAll(String, Packet, long)}.
+ * <p>
+ * The request is sent when subscribed to, and only one subscriber is allowed. Responses received before they are requested are buffered.
+ */
+final class ResponsePublisher extends ResponseHandler implements Flow.Publisher<Packet> {
+    private final SyncNetCore sync;
+    @Nullable
+    private final String server;
+    private final Packet request;
+    private final long timeoutMillis;
+
+    // All guarded by this
+    private Flow.Subscriber<? super Packet> subscriber;
+    private final ArrayDeque<Packet> buffered = new ArrayDeque<>();
+    private long demand;
+    private boolean complete;
+    @Nullable
+    private Throwable error;
+    private boolean terminated;
+    private boolean draining;
+
+    ResponsePublisher(SyncNetCore sync, @Nullable String server, Packet request, long timeoutMillis) {
+        this.sync = sync;
+        this.server = server;
+        this.request = request;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Packet> subscriber) {
+        boolean first;
+        synchronized (this) {
+            first = this.subscriber == null;
+            if (first) this.subscriber = subscriber;
+        }
+        if (!first) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Responses can only be subscribed to once"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription());
+        try {
+            if (sync.send(server, request, this, timeoutMillis, null)) sent();
+            else fail(new IOException("Not connected to " + (server == null ? "any server" : server)));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void accept(Packet packet) {
+        synchronized (this) {
+            if (terminated) return;
+            buffered.add(packet);
+        }
+        drain();
+    }
+
+    @Override
+    void finished() {
+        synchronized (this) {
+            complete = true;
+        }
+        drain();
+    }
+
+    private void fail(Throwable t) {
+        cancel();
+        synchronized (this) {
+            if (error == null) error = t;
+            complete = true;
+        }
+        drain();
+    }
+
+    /**
+     * Passes on what has been requested, from one thread at a time so signals are never concurrent.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) return;
+            draining = true;
+        }
+        while (true) {
+            Packet next = null;
+            boolean end = false;
+            Throwable failure;
+            Flow.Subscriber<? super Packet> subscriber;
+            synchronized (this) {
+                subscriber = this.subscriber;
+                failure = error;
+                if (terminated) {
+                    draining = false;
+                    return;
+                }
+                if (demand > 0 && !buffered.isEmpty() && failure == null) {
+                    next = buffered.poll();
+                    demand--;
+                } else if (complete && (buffered.isEmpty() || failure != null)) {
+                    end = terminated = true;
+                    buffered.clear();
+                } else {
+                    draining = false;
+                    return;
+                }
+            }
+            if (end) {
+                if (failure == null) subscriber.onComplete();
+                else subscriber.onError(failure);
+            } else {
+                subscriber.onNext(next);
+            }
+        }
+    }
+
+    private final class Subscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requested " + n + " responses, must be positive"));
+                return;
+            }
+            synchronized (ResponsePublisher.this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (ResponsePublisher.this) {
+                terminated = true;
+                buffered.clear();
+            }
+            ResponsePublisher.this.cancel();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dev.heliosares.sync.net;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The recipients of a packet sent by {@link SyncServer}, parsed once rather than for every connection. Named servers are looked up directly, only broadcasts visit every connection.
+ */
+final class Route {
+    static final Route ALL = new Route(null, null);
+
+    /**
+     * Normalized names, or null for every server
+     */
+    @Nullable
+    private final String[] servers;
+    /**
+     * Normalized name of a server to skip when sending to every server
+     */
+    @Nullable
+    private final String except;
+
+    private Route(@Nullable String[] servers, @Nullable String except) {
+        this.servers = servers;
+        this.except = except;
+    }
+
+    /**
+     * @param servers Server names separated by commas, or null or "all" for every server
+     */
+    static Route parse(@Nullable String servers) {
+        if (servers == null || servers.equals("all")) return ALL;
+        Set<String> names = new LinkedHashSet<>();
+        for (String name : servers.split(",")) names.add(normalize(name));
+        return new Route(names.toArray(String[]::new), null);
+    }
+
+    /**
+     * Every server but one, usually the one a packet came from
+     */
+    static Route allExcept(String server) {
+        return new Route(null, normalize(server));
+    }
+
+    static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    @Nullable
+    String[] servers() {
+        return servers;
+    }
+
+    boolean excludes(String normalizedName) {
+        return normalizedName.equals(except);
+    }
+
+    @Override
+    public String toString() {
+        if (servers != null) return String.join(",", servers);
+        return except == null ? "all" : "all except " + except;
+    }
+}
@@ -3,6 +3,7 @@ package dev.heliosares.sync.net;
 import dev.heliosares.sync.SyncAPI;
 import dev.heliosares.sync.SyncCore;
 import dev.heliosares.sync.SyncCoreProxy;
+import dev.heliosares.sync.net.packet.BlobPacket;
 import dev.heliosares.sync.net.packet.Packet;
 import dev.heliosares.sync.net.packet.PingPacket;
 import dev.heliosares.sync.net.packet.ResetConnectionIDPacket;
@@ -10,15 +11,14 @@ import dev.kshl.kshlib.encryption.CodeGenerator;
 import dev.kshl.kshlib.encryption.EncryptionAES;
 import dev.kshl.kshlib.encryption.EncryptionRSA;
 
+import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.ProviderException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -36,30 +36,104 @@ public class ServerClientHandler extends SocketConnection implements Runnable {
     private int p2pPort;
     protected boolean writePermission;
     protected short connectionID;
-    private boolean handshakeComplete;
+    private volatile boolean handshakeComplete;
+    private volatile String normalizedName;
+    private volatile Route othersRoute;
 
-    ServerClientHandler(SyncCore plugin, SyncServer server, Socket socket, EncryptionRSA serverRSA, Supplier<IDProvider> idProviderSupplier) throws IOException {
-        super(plugin, socket, idProviderSupplier);
+    ServerClientHandler(SyncCore plugin, SyncServer server, Transport transport, EncryptionRSA serverRSA, Supplier<IDProvider> idProviderSupplier) {
+        super(plugin, transport, idProviderSupplier, server.getDispatcher(), server.getWriters(), server.getTimers());
         this.plugin = plugin;
         this.server = server;
         this.serverRSA = serverRSA;
     }
 
+    /**
+     * Called by {@link SocketConnection} for binary frames with a forward target before anything but the header is decoded.
+     *
+     * @return Whether the frame should be passed to {@link #relay(BinaryPacketCodec.Header, byte[], byte[])} instead of being decoded and handled as a packet
+     */
+    boolean shouldRelay(BinaryPacketCodec.Header header) {
+        // Anything unusual takes the regular path, which reports it
+        return writePermission && header.origin() == null && header.responseID() != null && header.responseID().connectionID() == connectionID;
+    }
+
+    /**
+     * Passes on a frame accepted by {@link #shouldRelay(BinaryPacketCodec.Header)}.
+     *
+     * @param plaintext The decrypted frame
+     * @param blob      The decrypted blob frame, if the packet type has one
+     */
+    void relay(BinaryPacketCodec.Header header, byte[] plaintext, @Nullable byte[] blob) {
+        final byte[] relayed = BinaryPacketCodec.relay(plaintext, header, getName());
+        final PacketCodec codec = getCodec();
+        server.getDispatcher().dispatch(getName(), header.channel(), () -> {
+            try {
+                server.relay(getForwardRoute(header.forward()), EncodedPacket.relayed(codec, relayed, blob));
+
+                if (!header.forward().equalsIgnoreCase("all")) return;
+                // Only decode the payload if something here wants it
+                if ((header.type() == PacketType.PING && header.replyToResponseID() == null) || server.getEventHandler().hasListener(header.type(), header.channel())) {
+                    Packet packet = codec.decode(relayed);
+                    if (packet instanceof BlobPacket blobPacket && blob != null) blobPacket.setBlob(blob);
+                    handleLocally(packet);
+                }
+            } catch (Throwable t) {
+                plugin.print("Error relaying packet", t);
+            }
+        });
+    }
+
+    /**
+     * @return The servers a packet forwarded to the given target should be sent to
+     */
+    private Route getForwardRoute(String forward) {
+        // One send for every other server, so the packet is only encoded once
+        if (forward.equalsIgnoreCase("all")) return othersRoute;
+        return Route.parse(forward);
+    }
+
+    @Override
+    void setName(String name) {
+        // Set first, anything which sees the name must also see these
+        this.normalizedName = Route.normalize(name);
+        this.othersRoute = Route.allExcept(name);
+        super.setName(name);
+    }
+
+    String getNormalizedName() {
+        return normalizedName;
+    }
+
+    private void handleLocally(Packet packet) {
+        if (!packet.isResponse() && packet instanceof PingPacket pingPacket) {
+            Packet resp = pingPacket.createResponse();
+            try {
+                send(resp, null, 0, null);
+            } catch (IOException e) {
+                plugin.print("Error while sending ping response", e);
+            }
+        }
+        server.getEventHandler().execute(getName(), packet);
+    }
+
     protected void handshake() throws GeneralSecurityException, IOException {
         String debugKey = getIP().substring(getIP().indexOf(":") + 1);
         Consumer<String> debug = s -> plugin.debug("[" + debugKey + " Handshake] " + s);
 
-        byte[] myVersion = PROTOCOL_VERSION.getBytes();
         byte[] otherVersion = readRaw();
-        debug.accept("Other protocol is " + new String(otherVersion) + ", sending my protocol v" + PROTOCOL_VERSION);
-        sendRaw(myVersion);
-        if (!Arrays.equals(otherVersion, myVersion)) {
+        int protocolVersion = PacketCodec.negotiate(new String(otherVersion));
+        // Older clients require an exact match, so reply with the version we settled on rather than our own
+        String replyVersion = protocolVersion > 0 ? String.valueOf(protocolVersion) : PROTOCOL_VERSION;
+        debug.accept("Other protocol is " + new String(otherVersion) + ", sending protocol v" + replyVersion);
+        sendRaw(replyVersion.getBytes());
+        if (protocolVersion < 0) {
             plugin.warning("[" + debugKey + "] Mismatched protocol versions, I'm on " + PROTOCOL_VERSION + ", client is on " + new String(otherVersion) + ", dropping");
             close();
             server.remove(this);
             callDisconnectEvent(DisconnectReason.PROTOCOL_MISMATCH);
             return;
         }
+        setProtocolVersion(protocolVersion);
 
 
         String identity = new String(serverRSA.decrypt(readRaw()));
@@ -107,7 +181,6 @@ public class ServerClientHandler extends SocketConnection implements Runnable {
         p2pPort = ByteBuffer.wrap(read().decrypted()).getInt();
         writePermission = server.hasWritePermission(getName());
         server.updateClientsWithServerList();
-        server.getUserManager().sendPlayers(getName(), null);
     }
 
     @Override
@@ -115,6 +188,8 @@ public class ServerClientHandler extends SocketConnection implements Runnable {
         try {
             handshake();
             handshakeComplete = true;
+            // Only reachable by name once authenticated, so an unauthenticated socket can't displace the real client
+            server.register(this);
         } catch (GeneralSecurityException | ProviderException e) {
             plugin.print("Client failed to authenticate. " + getIP() + (plugin.debug() && e.getMessage() != null ? (", " + e.getMessage()) : ""));
             try {
@@ -139,57 +214,46 @@ public class ServerClientHandler extends SocketConnection implements Runnable {
 
 
         plugin.print(getName() + " connected on IP " + getIP() + (!writePermission ? ", read-only" : ""));
-        DisconnectReason disconnectReason = null;
-        while (isConnected()) {
-            try {
-                Packet packet = listen();
-                if (packet.getType() == PacketType.KEEP_ALIVE) continue;
+        listen(this::handle, this::disconnected);
+    }
 
-                packet.setOrigin(getName());
-                if (!writePermission && packet.getType() != PacketType.PLAYER_DATA) {
-                    plugin.warning(getName() + " tried to send a packet but does not have write permission: " + packet);
-                    continue;
-                }
-                if (packet.getResponseID().connectionID() != connectionID) {
-                    plugin.warning(getName() + " tried to send a packet with the wrong connectionID: " + packet);
-                    continue;
+    private void handle(Packet packet) {
+        if (packet.getType() == PacketType.KEEP_ALIVE) return;
+
+        packet.setOrigin(getName());
+        if (!writePermission && packet.getType() != PacketType.PLAYER_DATA) {
+            plugin.warning(getName() + " tried to send a packet but does not have write permission: " + packet);
+            return;
+        }
+        if (packet.getResponseID().connectionID() != connectionID) {
+            plugin.warning(getName() + " tried to send a packet with the wrong connectionID: " + packet);
+            return;
+        }
+        final String forward = packet.getForward();
+        server.getDispatcher().dispatch(getName(), packet.getChannel(), () -> {
+            try {
+                if (forward != null) {
+                    packet.setForward(null);
+                    server.forward(getForwardRoute(forward), packet);
                 }
-                final String forward = packet.getForward();
-                plugin.runAsync(() -> {
-                    try {
-                        if (forward != null) {
-                            packet.setForward(null);
-                            Consumer<String> sendToServer = serverName -> server.send(serverName, packet);
-                            if (forward.equalsIgnoreCase("all")) {
-                                server.getServers().stream().filter(name -> !name.equalsIgnoreCase(getName())).forEach(sendToServer);
-                            } else {
-                                sendToServer.accept(forward);
-                            }
-                        }
-                        if (forward == null || forward.equalsIgnoreCase("all")) {
-                            if (!packet.isResponse() && packet instanceof PingPacket pingPacket) {
-                                Packet resp = pingPacket.createResponse();
-                                try {
-                                    send(resp, null, 0, null);
-                                } catch (IOException e) {
-                                    plugin.print("Error while sending ping response", e);
-                                }
-                            }
-                            server.getEventHandler().execute(getName(), packet);
-                        }
-                    } catch (Throwable t) {
-                        plugin.print("Error handling packet async", t);
-                    }
-                });
-            } catch (Exception e1) {
-                if (e1 instanceof EOFException || (e1 instanceof SocketException socketException && "Socket closed".equals(socketException.getMessage()))) {
-                    disconnectReason = isClosed() ? DisconnectReason.SERVER_DROPPED_CLIENT : DisconnectReason.CLIENT_DISCONNECT;
-                    plugin.print(String.format(isClosed() ? "Server dropped client '%s'" : "Client '%s' disconnected", getName()));
-                } else {
-                    disconnectReason = DisconnectReason.ERROR_AFTER_HANDSHAKE;
-                    plugin.print("Error from client " + getName() + ", disconnecting", e1);
+                if (forward == null || forward.equalsIgnoreCase("all")) {
+                    handleLocally(packet);
                 }
-                break;
+            } catch (Throwable t) {
+                plugin.print("Error handling packet async", t);
+            }
+        });
+    }
+
+    private void disconnected(@Nullable Exception e1) {
+        DisconnectReason disconnectReason = null;
+        if (e1 != null) {
+            if (e1 instanceof EOFException || (e1 instanceof SocketException socketException && "Socket closed".equals(socketException.getMessage()))) {
+                disconnectReason = isClosed() ? DisconnectReason.SERVER_DROPPED_CLIENT : DisconnectReason.CLIENT_DISCONNECT;
+                plugin.print(String.format(isClosed() ? "Server dropped client '%s'" : "Client '%s' disconnected", getName()));
+            } else {
+                disconnectReason = DisconnectReason.ERROR_AFTER_HANDSHAKE;
+                plugin.print("Error from client " + getName() + ", disconnecting", e1);
             }
         }
         callDisconnectEvent(Objects.requireNonNullElse(disconnectReason, DisconnectReason.SERVER_DROPPED_CLIENT));
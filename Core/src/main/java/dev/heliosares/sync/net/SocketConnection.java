@@ -1,57 +1,115 @@
 package dev.heliosares.sync.net;
 
+import dev.heliosares.sync.SyncAPI;
 import dev.heliosares.sync.SyncCore;
 import dev.heliosares.sync.net.packet.BlobPacket;
 import dev.heliosares.sync.net.packet.Packet;
 import dev.heliosares.sync.net.packet.PingPacket;
 import dev.heliosares.sync.net.packet.ResetConnectionIDPacket;
-import dev.kshl.kshlib.concurrent.ConcurrentMap;
 import dev.kshl.kshlib.encryption.EncryptionAES;
 import dev.kshl.kshlib.misc.Formatter;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
  * Manages a Socket's connection. Agnostic to client/server.
+ * <p>
+ * The bytes are moved by a {@link Transport}, either blocking with a thread per connection or on a shared event loop.
  */
 public class SocketConnection {
+    static final int MAX_FRAME_SIZE = 100000000;
+    public static final int DEFAULT_WRITE_MAX_BATCH = 64;
+    public static final int DEFAULT_REPLAY_WINDOW = 64;
+    /**
+     * Senders block while more than this many bytes are queued on a connection
+     */
+    private static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+    /**
+     * A connection is dropped if a sender waits this long without anything being written, so one stalled connection can not hold up others
+     */
+    private static final long WRITE_STALL_MILLIS = 10000L;
+    /**
+     * How long responses are accepted for requests sent without a timeout
+     */
+    private static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 300000L;
     private EncryptionAES encryption;
     private final SyncCore plugin;
-    private final Socket socket;
+    private final Transport transport;
     private final Supplier<IDProvider> idProviderSupplier;
-    private final DataOutputStream out;
-    private final DataInputStream in;
+    @Nullable
+    private final Dispatcher dispatcher;
+    @Nullable
+    private final Dispatcher writers;
+    private final TimerWheel timers;
+    /**
+     * The timers acquired by this connection itself, released when it closes
+     */
+    private final AtomicReference<TimerWheel> ownTimers = new AtomicReference<>();
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
     private final long created;
-    private final ConcurrentMap<HashMap<Long, ResponseAction>, Long, ResponseAction> responses = new ConcurrentMap<>(new HashMap<>());
-    private boolean closed;
+    private final ConcurrentLongMap<ResponseAction> responses = new ConcurrentLongMap<>();
+    private volatile boolean closed;
     private String name;
-    private long lastPacketSent = System.currentTimeMillis();
+    private volatile long lastPacketSent = System.currentTimeMillis();
     private long lastPacketReceived = System.currentTimeMillis();
-    private long lastCleanup;
-    private final Map<Short, LinkedList<Long>> packetIDChain = new HashMap<>();
+    // Only used by the reading thread
+    private final Map<Short, ReplayWindow> replayWindows = new HashMap<>();
+    private final int replayWindowSize;
+    /**
+     * The window last checked, most packets come from the same sender
+     */
+    @Nullable
+    private ReplayWindow lastReplayWindow;
+    private short lastReplayConnectionID;
+    private int protocolVersion = Integer.parseInt(SyncAPI.MIN_PROTOCOL_VERSION);
+    private PacketCodec codec = PacketCodec.forProtocolVersion(protocolVersion);
+    private int compressionThreshold = -1;
+    private final ArrayDeque<OutboundFrame> outbound = new ArrayDeque<>();
+    private long outboundBytes;
+    private boolean writerRunning;
+    private final long writeLingerMillis;
+    private final int writeMaxBatch;
+    @Nullable
+    private PendingBlob pendingBlob;
 
     public SocketConnection(SyncCore plugin, Socket socket, Supplier<IDProvider> idProviderSupplier) throws IOException {
+        this(plugin, new StreamTransport(socket), idProviderSupplier, null, null, TimerWheel.acquire(plugin));
+        ownTimers.set(timers);
+    }
+
+    /**
+     * @param dispatcher Runs response handlers, or null to run each with {@link SyncCore#runAsync(Runnable)}
+     * @param writers    Runs the writer, see {@link Dispatcher#acquireWriters(SyncCore)}, or null to start it with {@link SyncCore#runAsync(Runnable)}
+     * @param timers     Expires requests, shared with the other connections of the plugin
+     */
+    SocketConnection(SyncCore plugin, Transport transport, Supplier<IDProvider> idProviderSupplier, @Nullable Dispatcher dispatcher, @Nullable Dispatcher writers, TimerWheel timers) {
         this.plugin = plugin;
-        this.socket = socket;
+        this.transport = transport;
         this.idProviderSupplier = idProviderSupplier;
+        this.dispatcher = dispatcher;
+        this.writers = writers;
+        this.timers = timers;
         this.created = System.currentTimeMillis();
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.writeLingerMillis = plugin.getWriteLingerMillis();
+        this.writeMaxBatch = Math.max(1, plugin.getWriteMaxBatch());
+        this.replayWindowSize = Math.max(1, plugin.getReplayWindow());
     }
 
     protected EncryptionAES getEncryption() {
@@ -64,87 +122,182 @@ public class SocketConnection {
             return;
         }
         closed = true;
-        try {
-            socket.close();
-        } catch (Throwable ignored) {
+        synchronized (outbound) {
+            outbound.notifyAll();
         }
+        transport.close();
+        TimerWheel.release(ownTimers.getAndSet(null));
     }
 
     @Nonnull
     public Packet listen() throws Exception {
-        synchronized (in) {
-            PacketBytes packetBytes = read();
-            String packetString = new String(packetBytes.decrypted());
-            Packet packet;
-            try {
-                packet = PacketType.getPacketFromJSON(new JSONObject(packetString));
-            } catch (JSONException e) {
-                throw new RuntimeException("Non-JSON packet received: " + packetString, e);
-            }
-            PacketBytes blobBytes_ = null;
-            if (packet instanceof BlobPacket blobPacket) {
-                blobBytes_ = read();
-                blobPacket.setBlob(blobBytes_.decrypted());
+        synchronized (readLock) {
+            while (true) {
+                Packet packet = process(read());
+                if (packet != null) return packet;
             }
+        }
+    }
 
-            if (packet.getResponseID() == null) {
-                throw new IllegalArgumentException("responseID=null for " + packet);
+    /**
+     * Passes every packet received to the handler until the connection ends. On a blocking transport this loops on the calling thread. Otherwise packets are handled on the transport's event loop and this returns immediately, so the handler must not block.
+     *
+     * @param onEnd Called once the connection has ended, with the exception which ended it, or null if it was closed while not reading
+     */
+    protected void listen(Consumer<Packet> handler, Consumer<Exception> onEnd) {
+        AtomicBoolean ended = new AtomicBoolean();
+        Consumer<Exception> end = e -> {
+            if (!ended.getAndSet(true)) onEnd.accept(e);
+        };
+        if (transport.isNonBlocking()) {
+            transport.readAsync(new Transport.FrameListener() {
+                @Override
+                public void frame(Transport.Frame frame) throws Exception {
+                    Packet packet;
+                    synchronized (readLock) {
+                        packet = process(decrypt(frame));
+                    }
+                    if (packet != null) handler.accept(packet);
+                }
+
+                @Override
+                public void closed(Exception cause) {
+                    end.accept(cause);
+                }
+            });
+            return;
+        }
+        while (isConnected()) {
+            try {
+                handler.accept(listen());
+            } catch (Exception e) {
+                end.accept(e);
+                return;
             }
+        }
+        end.accept(null);
+    }
 
-            LinkedList<Long> last = packetIDChain.computeIfAbsent(packet.getResponseID().connectionID(), o -> new LinkedList<>());
+    /**
+     * A packet, or a frame to relay, which is waiting for its separate blob frame
+     */
+    @FunctionalInterface
+    private interface PendingBlob {
+        @Nullable
+        Packet complete(PacketBytes blobBytes) throws Exception;
+    }
 
-            if (!last.isEmpty() && packet.getResponseID().packetID() <= last.getLast()) {
-                if (last.getLast() - packet.getResponseID().packetID() > 10 || last.contains(packet.getResponseID().packetID())) {
-                    throw new IllegalArgumentException(String.format("%s already received. Replay attack? (%d!=[%s], packet=%s)", packet.getResponseID(), packet.getResponseID().packetID(), last.stream().map(Object::toString).reduce((a, b) -> a + "," + b).orElse(""), packet));
+    /**
+     * Handles the next frame received. Must be synchronized on {@link #readLock}.
+     *
+     * @return The packet received, or null if the frame was relayed or more frames are needed
+     */
+    @Nullable
+    private Packet process(PacketBytes frame) throws Exception {
+        if (pendingBlob != null) {
+            PendingBlob pending = pendingBlob;
+            pendingBlob = null;
+            return pending.complete(frame);
+        }
+        if (codec instanceof BinaryPacketCodec) {
+            BinaryPacketCodec.Header header = BinaryPacketCodec.readHeader(frame.decrypted());
+            // Only connections accepted by a server relay
+            if (header.forward() != null && this instanceof ServerClientHandler sch && sch.shouldRelay(header)) {
+                if (header.type().hasBlob() && !codec.embedsBlob()) {
+                    pendingBlob = blobBytes -> relayed(sch, header, frame, blobBytes);
+                    return null;
                 }
+                return relayed(sch, header, frame, null);
             }
-            last.addLast(packet.getResponseID().packetID());
-            while (last.size() > 1) {
-                Long oldest = last.getFirst();
-                if (Math.abs(packet.getResponseID().packetID() - oldest) > 10) {
-                    last.removeFirst();
-                } else break;
-            }
+        }
+        Packet packet = codec.decode(frame.decrypted());
+        if (packet instanceof BlobPacket blobPacket && !codec.embedsBlob()) {
+            pendingBlob = blobBytes -> {
+                blobPacket.setBlob(blobBytes.decrypted());
+                return received(packet, frame, blobBytes);
+            };
+            return null;
+        }
+        return received(packet, frame, null);
+    }
 
-            PacketBytes blobBytes = blobBytes_;
+    @Nullable
+    private Packet relayed(ServerClientHandler sch, BinaryPacketCodec.Header header, PacketBytes relayBytes, @Nullable PacketBytes blobBytes) {
+        checkReplay(header.responseID(), header::toString);
+        this.lastPacketReceived = System.currentTimeMillis();
+        plugin.debug(() -> {
+            String line = "FWD (" + getName() + " -> " + header.forward() + ")";
+            line += " (" + Formatter.byteSizeToString(relayBytes.encrypted().length);
+            if (blobBytes != null) line += "+" + Formatter.byteSizeToString(blobBytes.encrypted().length);
+            line += "): " + header.type() + (header.channel() == null ? "" : " " + header.channel());
+            return line;
+        });
+        sch.relay(header, relayBytes.decrypted(), blobBytes == null ? null : blobBytes.decrypted());
+        return null;
+    }
 
-            this.lastPacketReceived = System.currentTimeMillis();
+    private Packet received(Packet packet, PacketBytes packetBytes, @Nullable PacketBytes blobBytes) throws IOException {
+        checkReplay(packet.getResponseID(), packet::toString);
 
-            if (packet.getType() != PacketType.KEEP_ALIVE) {
-                plugin.debug(() -> {
-                    String line = "RECV";
-                    if (this instanceof ServerClientHandler sch) {
-                        if (packet.getForward() != null) line = "FWD";
-                        line += " (" + sch.getName();
-                        if (packet.getForward() != null) line += " -> " + packet.getForward();
-                        line += ")";
-                    }
-                    line += " (" + Formatter.byteSizeToString(packetBytes.encrypted().length);
-                    if (blobBytes != null) line += "+" + Formatter.byteSizeToString(blobBytes.encrypted().length);
+        this.lastPacketReceived = System.currentTimeMillis();
+
+        if (packet.getType() != PacketType.KEEP_ALIVE) {
+            plugin.debug(() -> {
+                String line = "RECV";
+                if (this instanceof ServerClientHandler sch) {
+                    if (packet.getForward() != null) line = "FWD";
+                    line += " (" + sch.getName();
+                    if (packet.getForward() != null) line += " -> " + packet.getForward();
                     line += ")";
-                    line += ": " + packet.toHumanString();
-                    return line;
-                });
-            }
+                }
+                line += " (" + Formatter.byteSizeToString(packetBytes.encrypted().length);
+                if (blobBytes != null) line += "+" + Formatter.byteSizeToString(blobBytes.encrypted().length);
+                line += ")";
+                line += ": " + packet.toHumanString();
+                return line;
+            });
+        }
 
-            if (packet.isResponse()) {
-                plugin.runAsync(() -> {
-                    ResponseAction action = responses.get(packet.getReplyToResponseID().combined());
-                    try {
-                        if (action != null) action.accept(packet);
-                    } catch (Throwable t) {
-                        plugin.print("Error while handling response packet " + packet, t);
-                    }
-                });
-            }
+        if (packet.isResponse()) {
+            Runnable handleResponse = () -> {
+                ResponseAction action = responses.get(packet.getReplyToResponseID().combined());
+                try {
+                    if (action != null) action.accept(packet);
+                } catch (Throwable t) {
+                    plugin.print("Error while handling response packet " + packet, t);
+                }
+            };
+            dispatchResponse(handleResponse);
+        }
 
-            if (packet.getResponseID().connectionID() == 0 && packet.getType() == PacketType.RESET_CONNECTION_ID && packet instanceof ResetConnectionIDPacket resetConnectionIDPacket) {
-                packetIDChain.remove(resetConnectionIDPacket.id().get());
-                send(packet.createResponse(new JSONObject()), null, 3000, null);
-            }
+        if (packet.getResponseID().connectionID() == 0 && packet.getType() == PacketType.RESET_CONNECTION_ID && packet instanceof ResetConnectionIDPacket resetConnectionIDPacket) {
+            short connectionID = resetConnectionIDPacket.id().get();
+            replayWindows.remove(connectionID);
+            if (lastReplayConnectionID == connectionID) lastReplayWindow = null;
+            send(packet.createResponse(new JSONObject()), null, 3000, null);
+        }
+
+        return packet;
+    }
+
+    private void dispatchResponse(Runnable task) {
+        if (dispatcher == null) plugin.runAsync(task);
+        else dispatcher.dispatchResponse(getName(), task);
+    }
 
-            cleanup();
-            return packet;
+    private void checkReplay(@Nullable IDProvider.ID responseID, Supplier<String> packet) {
+        if (responseID == null) {
+            throw new IllegalArgumentException("responseID=null for " + packet.get());
+        }
+
+        ReplayWindow window = lastReplayWindow;
+        if (window == null || lastReplayConnectionID != responseID.connectionID()) {
+            window = replayWindows.computeIfAbsent(responseID.connectionID(), o -> new ReplayWindow(replayWindowSize));
+            lastReplayWindow = window;
+            lastReplayConnectionID = responseID.connectionID();
+        }
+        if (!window.accept(responseID.packetID())) {
+            throw new IllegalArgumentException(String.format("%s already received. Replay attack? (%d, highest=%d, packet=%s)", responseID, responseID.packetID(), window.getHighest(), packet.get()));
         }
     }
 
@@ -159,64 +312,201 @@ public class SocketConnection {
     }
 
     protected void send(Packet packet, @Nullable Consumer<Packet> responseConsumer, long timeoutMillis, @Nullable Runnable timeoutAction) throws IOException {
+        send(new EncodedPacket(packet), responseConsumer, timeoutMillis, timeoutAction);
+    }
+
+    /**
+     * Sends a packet whose plaintext may be shared with other connections. Only the response registration and encryption are done per connection.
+     * <p>
+     * The packet is queued and written by the connection's writer, see {@link #drain()}. Only blocks if too much data is already queued.
+     */
+    void send(EncodedPacket encodedPacket, @Nullable Consumer<Packet> responseConsumer, long timeoutMillis, @Nullable Runnable timeoutAction) throws IOException {
         if (closed) return;
+        if (encodedPacket.isRelayedAs(codec) && responseConsumer == null) {
+            // Pass through without decoding. Ids and origin were set by the sender and the proxy.
+            byte[] plain = encodedPacket.encode(codec);
+            OutboundFrame frame = new OutboundFrame(plain, () -> encodedPacket.compress(codec), null);
+            if (encodedPacket.relayedBlob() == null) enqueue(frame);
+            else enqueue(frame, OutboundFrame.of(encodedPacket.relayedBlob()));
+            return;
+        }
+        final Packet packet = encodedPacket.packet();
         if (packet.isResponse() && responseConsumer != null)
             throw new IllegalArgumentException("Cannot specify consumer for a response");
 
         packet.assignResponseID(idProviderSupplier.get());
         final long sendTime = System.nanoTime();
-        synchronized (out) {
-            if (packet instanceof PingPacket && !packet.isResponse() && (plugin instanceof SyncClient || packet.getForward() == null)) {
-                final Consumer<Packet> responseConsumer_ = responseConsumer;
-                responseConsumer = packet1 -> {
-                    if (packet1 instanceof PingPacket pingPacket) pingPacket.setOriginalPingTime(sendTime);
-                    if (responseConsumer_ != null) responseConsumer_.accept(packet1);
-                };
+        final ResponseHandler handler = responseConsumer instanceof ResponseHandler h ? h : null;
+        if (packet instanceof PingPacket && !packet.isResponse() && (plugin instanceof SyncClient || packet.getForward() == null)) {
+            final Consumer<Packet> responseConsumer_ = responseConsumer;
+            responseConsumer = packet1 -> {
+                if (packet1 instanceof PingPacket pingPacket) pingPacket.setOriginalPingTime(sendTime);
+                if (responseConsumer_ != null) responseConsumer_.accept(packet1);
+            };
+        }
+        if (responseConsumer != null) {
+            final long id = packet.getResponseID().combined();
+            responses.put(id, new ResponseAction(responseConsumer, timeoutAction, handler));
+            TimerWheel.Timeout timeout = expireResponses(id, timeoutMillis > 0 ? timeoutMillis : DEFAULT_RESPONSE_TIMEOUT_MILLIS, timeoutAction != null || handler != null);
+            if (handler != null) handler.register(() -> {
+                if (responses.remove(id) != null) timeout.cancel();
+            });
+        }
+
+        // Don't debug for forwarding packets, that was already accomplished on receipt
+        boolean debug = packet.getType() != PacketType.KEEP_ALIVE && (packet.getOrigin() == null || packet.getOrigin().equals("proxy") || (!(this instanceof ServerClientHandler)));
+        if (packet instanceof BlobPacket blobPacket && !codec.embedsBlob()) {
+            if (blobPacket.getBlob() == null) blobPacket.setBlob(new byte[0]);
+            final PacketBytes[] packetBytes = new PacketBytes[1];
+            enqueue(new OutboundFrame(encodedPacket.encode(codec), () -> encodedPacket.compress(codec), written -> packetBytes[0] = written),
+                    OutboundFrame.of(blobPacket.getBlob(), written -> {
+                        if (debug) debugSend(packet, packetBytes[0], written);
+                    }));
+        } else {
+            enqueue(new OutboundFrame(encodedPacket.encode(codec), () -> encodedPacket.compress(codec), debug ? written -> debugSend(packet, written, null) : null));
+        }
+    }
+
+    private void debugSend(Packet packet, PacketBytes packetBytes, @Nullable PacketBytes blobBytes) {
+        plugin.debug(() -> {
+            String line = "SEND";
+            if (this instanceof ServerClientHandler sch) {
+                line += " (" + sch.getName() + ")";
             }
-            if (responseConsumer != null) {
-                ResponseAction responseAction = new ResponseAction(packet.getResponseID().combined(), sendTime, responseConsumer, timeoutMillis > 0 ? timeoutMillis : 300000L, timeoutAction);
-                responses.put(packet.getResponseID().combined(), responseAction);
-                if (timeoutAction != null) {
-                    plugin.scheduleAsync(() -> {
-                        ResponseAction action = responses.remove(responseAction.id());
-                        if (action != null) action.timeout();
-                    }, responseAction.timeoutMillis());
+            line += " (" + Formatter.byteSizeToString(packetBytes.encrypted().length);
+            if (blobBytes != null) line += "+" + Formatter.byteSizeToString(blobBytes.encrypted().length);
+            line += ")";
+            line += ": " + packet.toHumanString();
+            return line;
+        });
+    }
+
+    /**
+     * A frame waiting to be written.
+     *
+     * @param compressed Supplies the compressed plaintext, which may already have been computed for another connection
+     * @param onWritten  Called by the writer once the frame is written
+     */
+    private record OutboundFrame(byte[] plain, Supplier<byte[]> compressed, @Nullable Consumer<PacketBytes> onWritten) {
+        static OutboundFrame of(byte[] plain) {
+            return of(plain, null);
+        }
+
+        static OutboundFrame of(byte[] plain, @Nullable Consumer<PacketBytes> onWritten) {
+            return new OutboundFrame(plain, () -> FrameCompression.compress(plain), onWritten);
+        }
+    }
+
+    /**
+     * Queues frames to be written together, in order, and starts the writer on the shared writer workers if it is not running.
+     */
+    private void enqueue(OutboundFrame... frames) throws IOException {
+        boolean startWriter;
+        synchronized (outbound) {
+            // The event loop must not wait on itself
+            long waitingSince = System.currentTimeMillis();
+            while (outboundBytes > MAX_QUEUED_BYTES && !closed && !transport.inEventLoop()) {
+                if (System.currentTimeMillis() - Math.max(waitingSince, lastPacketSent) > WRITE_STALL_MILLIS) {
+                    close();
+                    throw new IOException("Nothing written to " + getName() + " for " + WRITE_STALL_MILLIS + "ms, dropping");
+                }
+                try {
+                    outbound.wait(1000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
                 }
             }
-            String plain = packet.toString();
-            PacketBytes packetBytes = send(plain.getBytes());
-            PacketBytes blobBytes_ = null;
-            if (packet instanceof BlobPacket blobPacket) {
-                if (blobPacket.getBlob() == null) blobPacket.setBlob(new byte[0]);
-                blobBytes_ = send(blobPacket.getBlob());
+            if (closed) return;
+            for (OutboundFrame frame : frames) {
+                outbound.add(frame);
+                outboundBytes += frame.plain().length;
             }
-            final PacketBytes blobBytes = blobBytes_;
-            if (packet.getType() != PacketType.KEEP_ALIVE && (packet.getOrigin() == null || packet.getOrigin().equals("proxy") || (!(this instanceof ServerClientHandler)))) { // Don't debug for forwarding packets, that was already accomplished on receipt
-                plugin.debug(() -> {
-                    String line = "SEND";
-                    if (this instanceof ServerClientHandler sch) {
-                        line += " (" + sch.getName() + ")";
+            outbound.notifyAll();
+            startWriter = !writerRunning;
+            writerRunning = true;
+        }
+        if (!startWriter) return;
+        if (writers == null) plugin.runAsync(this::drain);
+        else writers.execute(this, this::drain);
+    }
+
+    /**
+     * Writes queued frames until the queue is empty. Frames are written in batches of up to {@link SyncCore#getWriteMaxBatch()} with a single flush, and the writer waits up to {@link SyncCore#getWriteLingerMillis()} for a batch to fill.
+     */
+    private void drain() {
+        List<OutboundFrame> batch = new ArrayList<>();
+        try {
+            while (true) {
+                synchronized (outbound) {
+                    if (writeLingerMillis > 0 && outbound.size() < writeMaxBatch) {
+                        long deadline = System.currentTimeMillis() + writeLingerMillis;
+                        long remaining;
+                        while (outbound.size() < writeMaxBatch && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            outbound.wait(remaining);
+                        }
                     }
-                    line += " (" + Formatter.byteSizeToString(packetBytes.encrypted().length);
-                    if (blobBytes != null) line += "+" + Formatter.byteSizeToString(blobBytes.encrypted().length);
-                    line += ")";
-                    line += ": " + packet.toHumanString();
-                    return line;
-                });
+                    if (outbound.isEmpty() || closed) {
+                        writerRunning = false;
+                        return;
+                    }
+                    while (batch.size() < writeMaxBatch && !outbound.isEmpty()) {
+                        OutboundFrame frame = outbound.poll();
+                        outboundBytes -= frame.plain().length;
+                        batch.add(frame);
+                    }
+                    outbound.notifyAll();
+                }
+                synchronized (writeLock) {
+                    for (OutboundFrame frame : batch) {
+                        PacketBytes written = send(frame.plain(), frame.compressed());
+                        if (frame.onWritten() != null) frame.onWritten().accept(written);
+                    }
+                    transport.flush();
+                }
+                batch.clear();
+                this.lastPacketSent = System.currentTimeMillis();
+            }
+        } catch (Throwable t) {
+            // Anything escaping would leave writerRunning set with no writer, so every later send would stall
+            if (!closed) plugin.print("Error while writing to " + getName() + ", closing", t);
+            close();
+            synchronized (outbound) {
+                outbound.clear();
+                outboundBytes = 0;
+                writerRunning = false;
+                outbound.notifyAll();
             }
-            out.flush();
         }
-        this.lastPacketSent = System.currentTimeMillis();
     }
 
+    /**
+     * Writes a frame immediately, bypassing the queue. Only for use during the handshake.
+     */
     protected PacketBytes send(byte[] plain) throws IOException {
+        synchronized (writeLock) {
+            PacketBytes written = send(plain, () -> FrameCompression.compress(plain));
+            transport.flush();
+            return written;
+        }
+    }
+
+    private PacketBytes send(byte[] plain, Supplier<byte[]> compressed) throws IOException {
+        byte[] frame = plain;
+        boolean isCompressed = false;
+        if (compressionThreshold >= 0 && plain.length >= compressionThreshold) {
+            byte[] deflated = compressed.get();
+            if (deflated.length < plain.length) {
+                frame = deflated;
+                isCompressed = true;
+            }
+        }
         byte[] ciphertext;
         try {
-            ciphertext = encryption.encrypt(plain);
+            ciphertext = encryption.encrypt(frame);
         } catch (IllegalBlockSizeException | BadPaddingException e) {
             throw new IOException("Invalid session key. This is unexpected..");
         }
-        sendRaw_(ciphertext);
+        transport.write(new Transport.Frame(ciphertext, isCompressed));
         return new PacketBytes(plain, ciphertext);
     }
 
@@ -224,15 +514,9 @@ public class SocketConnection {
         if (encryption != null) {
             throw new IOException("Cannot sendRaw after setting encryption");
         }
-        sendRaw_(plain);
-    }
-
-    private void sendRaw_(byte[] plain) throws IOException {
-        synchronized (out) {
-            out.writeInt(plain == null ? 0 : plain.length);
-            if (plain != null && plain.length > 0) {
-                out.write(plain);
-            }
+        synchronized (writeLock) {
+            transport.write(new Transport.Frame(plain, false));
+            transport.flush();
         }
     }
 
@@ -240,42 +524,53 @@ public class SocketConnection {
     }
 
     protected PacketBytes read() throws IOException, IllegalBlockSizeException, BadPaddingException {
-        byte[] ciphertext = readRaw();
-        return new PacketBytes(encryption.decrypt(ciphertext), ciphertext);
+        synchronized (readLock) {
+            return decrypt(transport.read());
+        }
     }
 
-    public byte[] readRaw() throws IOException {
-        synchronized (in) {
-            int size = in.readInt();
-            if (size == 0) return new byte[0];
-            if (size > 100000000) throw new IOException("Packet size too large (" + size + ">100,000,000");
-            if (size < 0) throw new IOException("Packet size < 0");
+    private PacketBytes decrypt(Transport.Frame frame) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (frame.compressed() && protocolVersion < FrameCompression.PROTOCOL_VERSION) throw new IOException("Compressed frame received before protocol v" + FrameCompression.PROTOCOL_VERSION);
+        byte[] plain = encryption.decrypt(frame.data());
+        if (frame.compressed()) plain = FrameCompression.decompress(plain, MAX_FRAME_SIZE);
+        return new PacketBytes(plain, frame.data());
+    }
 
-            return in.readNBytes(size);
+    public byte[] readRaw() throws IOException {
+        synchronized (readLock) {
+            Transport.Frame frame = transport.read();
+            if (frame.compressed()) throw new IOException("Compressed frame during handshake");
+            return frame.data();
         }
     }
 
-    private void cleanup() {
-        if (System.currentTimeMillis() - lastCleanup < 60000) return;
-        lastCleanup = System.currentTimeMillis();
-        responses.consume(responses -> responses.values().removeIf(ResponseAction::removeIf));
+    /**
+     * Stops accepting responses to a request once its timeout has passed.
+     *
+     * @param hasTimeoutAction Whether the timeout action has to run. It is run in the sender's response lane, after responses that arrived in time.
+     * @return The timeout, to cancel it with
+     */
+    private TimerWheel.Timeout expireResponses(long id, long timeoutMillis, boolean hasTimeoutAction) {
+        Runnable expire = () -> {
+            ResponseAction action = responses.remove(id);
+            if (action != null) action.timeout();
+        };
+        if (hasTimeoutAction) return timers.schedule(() -> dispatchResponse(expire), timeoutMillis);
+        return timers.schedule(() -> responses.remove(id), timeoutMillis);
     }
 
     private static final class ResponseAction {
-        private final long id;
-        private final long created;
         @Nonnull
         private final Consumer<Packet> action;
-        private final long timeoutMillis;
         private final Runnable timeoutAction;
-        private boolean receivedAny;
+        @Nullable
+        private final ResponseHandler handler;
+        private volatile boolean receivedAny;
 
-        private ResponseAction(long id, long created, @Nonnull Consumer<Packet> action, long timeoutMillis, Runnable timeoutAction) {
-            this.id = id;
-            this.created = created;
+        private ResponseAction(@Nonnull Consumer<Packet> action, Runnable timeoutAction, @Nullable ResponseHandler handler) {
             this.action = action;
-            this.timeoutMillis = timeoutMillis;
             this.timeoutAction = timeoutAction;
+            this.handler = handler;
         }
 
         public void accept(Packet packet) {
@@ -283,21 +578,11 @@ public class SocketConnection {
             action.accept(packet);
         }
 
-        public long timeoutMillis() {
-            return timeoutMillis;
-        }
-
-        boolean removeIf() {
-            if (System.currentTimeMillis() - created < timeoutMillis) return false;
-            if (timeoutAction != null) timeoutAction.run();
-            return true;
-        }
-
-        public long id() {
-            return id;
-        }
-
         public void timeout() {
+            if (handler != null) {
+                handler.expired();
+                return;
+            }
             if (receivedAny) return;
             if (timeoutAction == null) return;
             timeoutAction.run();
@@ -320,10 +605,7 @@ public class SocketConnection {
         if (closed) {
             return false;
         }
-        if (socket == null || socket.isClosed()) {
-            return false;
-        }
-        return socket.isConnected();
+        return transport.isOpen();
     }
 
     public long getTimeOfLastPacketSent() {
@@ -335,7 +617,31 @@ public class SocketConnection {
     }
 
     public String getIP() {
-        return socket.getRemoteSocketAddress().toString();
+        return transport.getRemoteAddress();
+    }
+
+    boolean isNonBlocking() {
+        return transport.isNonBlocking();
+    }
+
+    /**
+     * @return The codec for the protocol version in use, see {@link #getProtocolVersion()}
+     */
+    PacketCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return The protocol version agreed upon with the other endpoint during the handshake
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+        this.codec = PacketCodec.forProtocolVersion(protocolVersion);
+        this.compressionThreshold = protocolVersion >= FrameCompression.PROTOCOL_VERSION ? plugin.getCompressionThreshold() : -1;
     }
 
     public void setEncryption(EncryptionAES encryption) {
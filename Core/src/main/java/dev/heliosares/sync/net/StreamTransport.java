@@ -0,0 +1,66 @@
+package dev.heliosares.sync.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Blocking reads and writes on a socket's streams. Someone has to call {@link #read()} in a loop, so each connection needs its own thread.
+ */
+final class StreamTransport implements Transport {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final String remoteAddress;
+
+    StreamTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        this.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    @Override
+    public Frame read() throws IOException {
+        synchronized (in) {
+            int prefix = in.readInt();
+            int size = Transport.frameLength(prefix);
+            byte[] data = in.readNBytes(size);
+            if (data.length < size) throw new EOFException();
+            return new Frame(data, (prefix & FrameCompression.FLAG_COMPRESSED) != 0);
+        }
+    }
+
+    @Override
+    public void write(Frame frame) throws IOException {
+        out.writeInt(Transport.prefix(frame));
+        out.write(frame.data());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed() && socket.isConnected();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (Throwable ignored) {
+        }
+    }
+}
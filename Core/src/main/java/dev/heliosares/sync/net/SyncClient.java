@@ -15,12 +15,10 @@ import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -32,6 +30,10 @@ public class SyncClient implements SyncNetCore {
     public static final String PROTOCOL_VERSION = SyncAPI.PROTOCOL_VERSION;
     private final SyncCore plugin;
     private final NetEventHandler eventHandler;
+    private final BlobStreams blobStreams;
+    private final Dispatcher dispatcher;
+    private final Dispatcher writers;
+    private final TimerWheel timers;
     private final UserManager usermanager;
     private final EncryptionRSA clientRSA;
     private final EncryptionRSA serverRSA;
@@ -43,6 +45,8 @@ public class SyncClient implements SyncNetCore {
     private boolean handshakeComplete;
     private final CompletableException<Exception> connectedCompletable = new CompletableException<>();
     private P2PServer p2pServer;
+    @Nullable
+    private NioEventLoopGroup eventLoops;
 
     @FunctionalInterface
     public interface CreatorFunction {
@@ -64,6 +68,10 @@ public class SyncClient implements SyncNetCore {
         } else {
             this.usermanager = null;
         }
+        this.blobStreams = new BlobStreams(plugin, this);
+        this.dispatcher = Dispatcher.acquire(plugin);
+        this.writers = Dispatcher.acquireWriters(plugin);
+        this.timers = TimerWheel.acquire(plugin);
     }
 
     @Nullable
@@ -73,6 +81,23 @@ public class SyncClient implements SyncNetCore {
         return client.write();
     }
 
+    /**
+     * @return The protocol version negotiated with the proxy
+     */
+    int getProtocolVersion() {
+        if (connection == null) return Integer.parseInt(SyncAPI.MIN_PROTOCOL_VERSION);
+        return connection.getProtocolVersion();
+    }
+
+    /**
+     * @return The protocol version to use for a P2P connection with the specified server, based on the version it negotiated with the proxy
+     */
+    int getP2PProtocolVersion(String name) {
+        var client = servers.get(name);
+        int partner = client == null ? Integer.parseInt(SyncAPI.MIN_PROTOCOL_VERSION) : client.protocol();
+        return Math.min(partner, Integer.parseInt(PROTOCOL_VERSION));
+    }
+
     public String getRSAUserID() {
         return clientRSA.getUUID().toString();
     }
@@ -83,11 +108,13 @@ public class SyncClient implements SyncNetCore {
         plugin.debug("Sending protocol version v" + PROTOCOL_VERSION);
         connection.sendRaw(myVersion);
         byte[] otherVersion = connection.readRaw();
-        if (!Arrays.equals(otherVersion, myVersion)) {
+        int protocolVersion = PacketCodec.negotiate(new String(otherVersion));
+        if (protocolVersion < 0) {
             plugin.warning("Mismatched protocol versions, I'm on " + PROTOCOL_VERSION + ", server is on " + new String(otherVersion) + ", shutting down");
             close();
             return;
         }
+        connection.setProtocolVersion(protocolVersion);
 
         plugin.debug("Sending RSA ID");
         connection.sendRaw(serverRSA.encrypt(getRSAUserID().getBytes()));
@@ -108,7 +135,7 @@ public class SyncClient implements SyncNetCore {
         } catch (EOFException e) {
             throw new InvalidKeyException("Server ended connection during authentication");
         }
-        plugin.debug("Protocol version match");
+        plugin.debug("Protocol version match (v" + protocolVersion + ")");
         connection.setName(new String(connection.read().decrypted()));
         plugin.debug("Received name: " + getName());
         byte[] connectionIDBytes = connection.read().decrypted();
@@ -138,14 +165,14 @@ public class SyncClient implements SyncNetCore {
             plugin.print("Client connecting to " + host + ":" + port + "...");
         }
 
-        connection = new SocketConnection(plugin, new Socket(host, port), this::getIDProvider);
+        connection = new SocketConnection(plugin, Transport.connect(eventLoops, host, port), this::getIDProvider, dispatcher, writers, timers);
 
         handshake(connection);
 
         handshakeComplete = true;
         unableToConnectCount = 0;
 
-        if (usermanager != null) usermanager.request();
+        if (usermanager != null) usermanager.catchUp();
     }
 
     /**
@@ -157,6 +184,11 @@ public class SyncClient implements SyncNetCore {
     public CompletableException<Exception> start(String host, int port) {
         if (connection != null) throw new IllegalStateException("Client already started");
         plugin.scheduleAsync(this::keepAlive, 250, 500);
+        try {
+            eventLoops = NioEventLoopGroup.acquire(plugin);
+        } catch (IOException e) {
+            plugin.print("Failed to start network threads, falling back to blocking sockets", e);
+        }
 
         handshakeComplete = false;
 
@@ -209,6 +241,7 @@ public class SyncClient implements SyncNetCore {
                                     String name = json.getString("name");
                                     if (name.equals(getName())) continue;
                                     boolean write = json.getBoolean("write");
+                                    int protocol = json.optInt("protocol", Integer.parseInt(SyncAPI.MIN_PROTOCOL_VERSION));
                                     unhandled.remove(name);
                                     String newHost = json.optString("p2p_host", null);
                                     int newPort = 0;
@@ -231,9 +264,9 @@ public class SyncClient implements SyncNetCore {
                                         // Have a new host, connect
                                         P2PServerData newContainer;
                                         if (newHost == null) {
-                                            newContainer = new P2PServerData(null, 0, null, write);
+                                            newContainer = new P2PServerData(null, 0, null, write, protocol);
                                         } else {
-                                            newContainer = new P2PServerData(newHost, newPort, new P2PClient(plugin, name), write);
+                                            newContainer = new P2PServerData(newHost, newPort, new P2PClient(plugin, name, protocol), write, protocol);
                                             newContainer.client().start(newHost, newPort);
                                             newContainer.client().idProvider = idProvider;
                                         }
@@ -301,6 +334,11 @@ public class SyncClient implements SyncNetCore {
         if (closed) return;
         closed = true;
         if (connection != null) connection.close();
+        if (p2pServer != null) p2pServer.close();
+        NioEventLoopGroup.release(eventLoops);
+        Dispatcher.release(dispatcher);
+        Dispatcher.release(writers);
+        TimerWheel.release(timers);
     }
 
     /**
@@ -412,6 +450,16 @@ public class SyncClient implements SyncNetCore {
         return eventHandler;
     }
 
+    @Override
+    public BlobStreams getBlobStreams() {
+        return blobStreams;
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     public UserManager getUserManager() {
         return usermanager;
     }
@@ -4,7 +4,12 @@ import dev.heliosares.sync.net.packet.Packet;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 public interface SyncNetCore {
@@ -19,12 +24,57 @@ public interface SyncNetCore {
 
     boolean send(String server, Packet packet, @Nullable Consumer<Packet> consumer, long timeoutMillis, @Nullable Runnable timeoutAction) throws IOException;
 
+    /**
+     * Sends a packet and completes with the first response. Completes exceptionally with a {@link TimeoutException} if there is none in time, or with the exception if the packet could not be sent.
+     * <p>
+     * The future is completed by the {@link #getDispatcher() dispatcher}, after earlier responses from the same server, so dependent stages must not block. Cancelling the future stops waiting for the response.
+     *
+     * @param server The server to send to, see {@link #send(String, Packet)}
+     */
+    default CompletableFuture<Packet> request(@Nullable String server, Packet packet, long timeoutMillis) {
+        ResponseFuture handler = new ResponseFuture(packet);
+        try {
+            if (send(server, packet, handler, timeoutMillis, null)) handler.sent();
+            else handler.future().completeExceptionally(new IOException("Not connected to " + (server == null ? "any server" : server)));
+        } catch (IOException e) {
+            handler.future().completeExceptionally(e);
+        }
+        return handler.future();
+    }
+
+    /**
+     * Sends a packet when subscribed to and publishes every response until the timeout has passed, for requests answered more than once or by several servers.
+     *
+     * @see #request(String, Packet, long)
+     */
+    default Flow.Publisher<Packet> requestAll(@Nullable String server, Packet packet, long timeoutMillis) {
+        return new ResponsePublisher(this, server, packet, timeoutMillis);
+    }
+
+    /**
+     * Runs a command on each of several servers and completes once every one has finished it or its timeout has passed.
+     *
+     * @param servers       Names of the servers to run it on
+     * @param timeoutMillis How long to wait for each server
+     * @return Each server's output, status and latency, by server name in the order given
+     */
+    default CompletableFuture<Map<String, CommandResult>> executeCommand(Collection<String> servers, String command, long timeoutMillis) {
+        return CommandGather.execute(this, servers, command, timeoutMillis);
+    }
+
     void close();
 
     void closeTemporary();
 
     NetEventHandler getEventHandler();
 
+    BlobStreams getBlobStreams();
+
+    /**
+     * @return Runs the handling of received packets, see {@link Dispatcher}
+     */
+    Dispatcher getDispatcher();
+
     Set<String> getServers();
 
     String getName();
@@ -0,0 +1,67 @@
+package dev.heliosares.sync.net;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Limits how often changes to a {@link PlayerData.Variable} are sent, see {@link UserManager#setSyncPolicy(String, SyncPolicy)}.
+ * <p>
+ * A change is sent right away if at least {@code minIntervalMillis} have passed since the last one was sent and it differs from that by more than the deadband. Otherwise it is held back and sent with anything after it once the interval has passed, so the latest value always arrives.
+ *
+ * @param deadband          Changes to numbers smaller than this are held back
+ * @param relativeDeadband  Changes to numbers smaller than this fraction of the last sent value are held back
+ * @param minIntervalMillis The least time between sending changes
+ */
+public record SyncPolicy(double deadband, double relativeDeadband, long minIntervalMillis) {
+    /**
+     * Health and saturation change by small amounts many times a second
+     */
+    public static final Map<String, SyncPolicy> DEFAULTS = Map.of(
+            "health", new SyncPolicy(0.5, 0, 500),
+            "saturation", new SyncPolicy(1, 0, 1000));
+
+    public SyncPolicy {
+        if (deadband < 0 || relativeDeadband < 0 || minIntervalMillis < 0) {
+            throw new IllegalArgumentException("Sync policy values can not be negative");
+        }
+        if ((deadband > 0 || relativeDeadband > 0) && minIntervalMillis == 0) {
+            throw new IllegalArgumentException("A deadband needs a minimum interval to send held back changes after");
+        }
+    }
+
+    boolean isWithinDeadband(Object last, Object value) {
+        if (!(last instanceof Number lastNumber) || !(value instanceof Number number)) return false;
+        double diff = Math.abs(number.doubleValue() - lastNumber.doubleValue());
+        return diff < deadband || diff < relativeDeadband * Math.abs(lastNumber.doubleValue());
+    }
+
+    /**
+     * Reads policies from the config, on top of {@link #DEFAULTS}. Each entry names its variable, such as {@code health} or {@code custom.s.MyPlugin:key}, with {@code deadband}, {@code relative-deadband} and {@code min-interval-millis} each defaulting to 0.
+     *
+     * @param warning Told about entries which are skipped
+     */
+    public static Map<String, SyncPolicy> parse(List<?> entries, Consumer<String> warning) {
+        Map<String, SyncPolicy> policies = new HashMap<>(DEFAULTS);
+        for (Object entry : entries) {
+            if (!(entry instanceof Map<?, ?> map) || !(map.get("variable") instanceof String variable)) {
+                warning.accept("Sync policy without a variable: " + entry);
+                continue;
+            }
+            try {
+                policies.put(variable, new SyncPolicy(getNumber(map, "deadband").doubleValue(), getNumber(map, "relative-deadband").doubleValue(), getNumber(map, "min-interval-millis").longValue()));
+            } catch (IllegalArgumentException e) {
+                warning.accept("Invalid sync policy for " + variable + ": " + e.getMessage());
+            }
+        }
+        return policies;
+    }
+
+    private static Number getNumber(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        if (value == null) return 0;
+        if (value instanceof Number number) return number;
+        throw new IllegalArgumentException(key + " must be a number");
+    }
+}
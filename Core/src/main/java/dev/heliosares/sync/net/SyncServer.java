@@ -3,7 +3,6 @@ package dev.heliosares.sync.net;
 import dev.heliosares.sync.SyncCore;
 import dev.heliosares.sync.SyncCoreProxy;
 import dev.heliosares.sync.net.packet.Packet;
-import dev.kshl.kshlib.concurrent.ConcurrentCollection;
 import dev.kshl.kshlib.encryption.EncryptionRSA;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -11,28 +10,43 @@ import org.json.JSONObject;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 public class SyncServer implements SyncNetCore {
     final SyncCore plugin;
     private final NetEventHandler eventhandler;
-    private final ConcurrentCollection<ArrayList<ServerClientHandler>, ServerClientHandler> clients = new ConcurrentCollection<>(new ArrayList<>());
+    private final BlobStreams blobStreams;
+    private final Dispatcher dispatcher;
+    private final Dispatcher writers;
+    private final TimerWheel timers;
+    /**
+     * Copy-on-write, so sending and keep-alives iterate a snapshot without holding a lock while writing to clients
+     */
+    private final List<ServerClientHandler> clients = new CopyOnWriteArrayList<>();
+    /**
+     * Clients by {@link Route#normalize(String) normalized} name, for sending to specific servers
+     */
+    private final Map<String, ServerClientHandler> byName = new ConcurrentHashMap<>();
     private final UserManager usermanager;
     private final Map<String, String> p2pHostNames;
     private final EncryptionRSA serverRSA;
     private Set<EncryptionRSA> clientEncryptionRSA;
     private ServerSocket serverSocket;
+    @Nullable
+    private NioEventLoopGroup eventLoops;
     private boolean closed = false;
     private final IDProvider idProvider = new IDProvider((short) 0);
     private long timeoutMillis = 3000L;
@@ -45,6 +59,10 @@ public class SyncServer implements SyncNetCore {
         this.p2pHostNames = p2pHostNames;
         this.serverRSA = serverRSA;
         eventhandler.registerListener(PacketType.PLAYER_DATA, null, usermanager);
+        this.blobStreams = new BlobStreams(plugin, this);
+        this.dispatcher = Dispatcher.acquire(plugin);
+        this.writers = Dispatcher.acquireWriters(plugin);
+        this.timers = TimerWheel.acquire(plugin);
     }
 
     /**
@@ -71,36 +89,82 @@ public class SyncServer implements SyncNetCore {
 
     @Override
     public boolean send(@Nullable String server, Packet packet, @Nullable Consumer<Packet> responseConsumer, long timeoutMillis, @Nullable Runnable timeoutAction) {
-        return clients.function(clients -> {
-            boolean any = false;
-            String[] servers = (server == null || server.equals("all")) ? null : server.split(",");
-            Iterator<ServerClientHandler> it = clients.iterator();
-            while (it.hasNext()) {
-                ServerClientHandler ch = it.next();
-                if (ch.getName() == null || !ch.isConnected()) {
-                    continue;
-                }
-                contains:
-                // Checks that the server is included in the list, or skips if the list is null
-                if (servers != null) {
-                    for (String other : servers) {
-                        if (other.equalsIgnoreCase(ch.getName())) {
-                            break contains;
-                        }
-                    }
-                    continue;
-                }
-                try {
-                    ch.send(packet, responseConsumer, timeoutMillis, timeoutAction);
-                    any = true;
-                } catch (IOException e) {
-                    plugin.print("Error while sending to: " + ch.getName() + ". Kicking", e);
-                    ch.close();
-                    it.remove();
-                }
+        return send(Route.parse(server), new EncodedPacket(packet), responseConsumer, timeoutMillis, timeoutAction);
+    }
+
+    /**
+     * Sends a packet on to recipients which are already resolved
+     */
+    boolean forward(Route route, Packet packet) {
+        return send(route, new EncodedPacket(packet), null, 0, null);
+    }
+
+    /**
+     * Passes on a frame received from another server without decoding it, where possible.
+     *
+     * @see ServerClientHandler#relay(BinaryPacketCodec.Header, byte[], byte[])
+     */
+    boolean relay(Route route, EncodedPacket encodedPacket) {
+        return send(route, encodedPacket, null, 0, null);
+    }
+
+    private boolean send(Route route, EncodedPacket encodedPacket, @Nullable Consumer<Packet> responseConsumer, long timeoutMillis, @Nullable Runnable timeoutAction) {
+        boolean any = false;
+        String[] servers = route.servers();
+        if (servers != null) {
+            for (String server : servers) {
+                ServerClientHandler ch = byName.get(server);
+                if (ch != null) any |= send(ch, encodedPacket, responseConsumer, timeoutMillis, timeoutAction);
             }
             return any;
-        });
+        }
+        for (ServerClientHandler ch : clients) {
+            String name = ch.getNormalizedName();
+            if (name == null || route.excludes(name)) continue;
+            any |= send(ch, encodedPacket, responseConsumer, timeoutMillis, timeoutAction);
+        }
+        return any;
+    }
+
+    private boolean send(ServerClientHandler ch, EncodedPacket encodedPacket, @Nullable Consumer<Packet> responseConsumer, long timeoutMillis, @Nullable Runnable timeoutAction) {
+        if (!ch.isConnected()) return false;
+        try {
+            // Relayed frames are decoded for these servers, which mostly use a different codec anyway
+            if (ch.getProtocolVersion() < UserManager.BATCH_PROTOCOL_VERSION && UserManager.isBatch(encodedPacket.packet())) {
+                for (Packet update : UserManager.toLegacyUpdates(encodedPacket.packet())) ch.send(update, null, 0, null);
+                return true;
+            }
+            ch.send(encodedPacket, responseConsumer, timeoutMillis, timeoutAction);
+            return true;
+        } catch (IOException e) {
+            plugin.print("Error while sending to: " + ch.getName() + ". Kicking", e);
+            ch.close();
+            unregister(ch);
+            return false;
+        }
+    }
+
+    /**
+     * Makes a client reachable by name. Called once the client has completed its handshake, a newer connection under the same name replaces an older one.
+     */
+    void register(ServerClientHandler ch) {
+        if (ch.getName() == null || !ch.isConnected()) return;
+        byName.put(ch.getNormalizedName(), ch);
+        // Closed while registering, make sure it doesn't linger
+        if (!ch.isConnected()) unregister(ch);
+    }
+
+    private void unregister(ServerClientHandler ch) {
+        clients.remove(ch);
+        String name = ch.getNormalizedName();
+        if (name == null || !byName.remove(name, ch)) return;
+        // An older connection under the same name may still be live
+        for (ServerClientHandler other : clients) {
+            if (name.equals(other.getNormalizedName()) && other.isConnected() && other.isHandshakeComplete()) {
+                byName.putIfAbsent(name, other);
+                return;
+            }
+        }
     }
 
     @Override
@@ -118,22 +182,37 @@ public class SyncServer implements SyncNetCore {
         if (serverSocket != null) {
             throw new IllegalStateException("Server already started");
         }
+        try {
+            eventLoops = NioEventLoopGroup.acquire(plugin);
+        } catch (IOException e) {
+            plugin.print("Failed to start network threads, falling back to blocking sockets", e);
+        }
         plugin.newThread(() -> {
             // This loop restarts the server on failure
             while (!closed) {
                 try {
-                    serverSocket = new ServerSocket(port, 0, host == null ? null : InetAddress.getByName(host));
+                    InetAddress address = host == null ? null : InetAddress.getByName(host);
+                    if (eventLoops == null) {
+                        serverSocket = new ServerSocket(port, 0, address);
+                    } else {
+                        // Accepting still blocks this thread, but the accepted sockets have channels
+                        ServerSocketChannel channel = ServerSocketChannel.open();
+                        channel.bind(new InetSocketAddress(address, port));
+                        serverSocket = channel.socket();
+                    }
                     portCompletable.complete(serverSocket.getLocalPort());
                     plugin.print("Server running on port " + serverSocket.getLocalPort() + ".");
                     // This look waits for clients
                     while (!closed) {
                         Socket socket = serverSocket.accept();
-                        var ch = accept(socket);
+                        var ch = accept(Transport.of(eventLoops, socket));
 
                         plugin.debug("Connection accepted from port " + socket.getPort());
 
                         clients.add(ch);
-                        plugin.newThread(ch);
+                        // Non-blocking connections only need a thread for the handshake
+                        if (ch.isNonBlocking()) plugin.runAsync(ch);
+                        else plugin.newThread(ch);
                     }
                 } catch (SocketException e1) {
                     plugin.print("Server closed.");
@@ -155,8 +234,8 @@ public class SyncServer implements SyncNetCore {
         plugin.scheduleAsync(this::keepAlive, 100, 100);
     }
 
-    protected ServerClientHandler accept(Socket socket) throws IOException {
-        return new ServerClientHandler(plugin, SyncServer.this, socket, serverRSA, this::getIDProvider);
+    protected ServerClientHandler accept(Transport transport) {
+        return new ServerClientHandler(plugin, SyncServer.this, transport, serverRSA, this::getIDProvider);
     }
 
     /**
@@ -166,37 +245,33 @@ public class SyncServer implements SyncNetCore {
      * Sends a keepAlive packet to all clients
      */
     public void keepAlive() {
-        clients.consume(clients -> {
-            Iterator<ServerClientHandler> it = clients.iterator();
-            while (it.hasNext()) {
-                ServerClientHandler ch = it.next();
-                boolean remove = false;
-                if (ch.getName() == null) {
-                    if (ch.getAge() > 3000) {
-                        remove = true;
-                    } else {
-                        continue;// Still connecting
-                    }
-                } else if (!ch.isConnected()) {
-                    remove = true;
-                } else if (System.currentTimeMillis() - ch.getTimeOfLastPacketReceived() > getTimeoutMillis()) {
-                    plugin.print(ch.getName() + " timed out");
+        for (ServerClientHandler ch : clients) {
+            boolean remove = false;
+            if (ch.getName() == null) {
+                if (ch.getAge() > 3000) {
                     remove = true;
                 } else {
-                    try {
-                        ch.sendKeepAlive(idProvider);
-                    } catch (IOException e) {
-                        plugin.print(ch.getName() + " timed out");
-                        remove = true;
-                    }
+                    continue;// Still connecting
                 }
-                if (remove) {
-                    ch.callDisconnectEvent(DisconnectReason.TIMEOUT); //TODO cancellable?
-                    ch.close();
-                    it.remove();
+            } else if (!ch.isConnected()) {
+                remove = true;
+            } else if (System.currentTimeMillis() - ch.getTimeOfLastPacketReceived() > getTimeoutMillis()) {
+                plugin.print(ch.getName() + " timed out");
+                remove = true;
+            } else {
+                try {
+                    ch.sendKeepAlive(idProvider);
+                } catch (IOException e) {
+                    plugin.print(ch.getName() + " timed out");
+                    remove = true;
                 }
             }
-        });
+            if (remove) {
+                ch.callDisconnectEvent(DisconnectReason.TIMEOUT); //TODO cancellable?
+                ch.close();
+                unregister(ch);
+            }
+        }
     }
 
     public void setTimeoutMillis(long timeoutMillis) {
@@ -217,6 +292,7 @@ public class SyncServer implements SyncNetCore {
                 element.put("p2p_port", client.getP2PPort());
                 element.put("p2p_host", p2pHostNames.get(client.getName()));
                 element.put("write", client.writePermission);
+                element.put("protocol", client.getProtocolVersion());
                 servers.put(element);
             }
         }
@@ -234,6 +310,10 @@ public class SyncServer implements SyncNetCore {
         }
         closed = true;
         closeTemporary();
+        NioEventLoopGroup.release(eventLoops);
+        Dispatcher.release(dispatcher);
+        Dispatcher.release(writers);
+        TimerWheel.release(timers);
     }
 
     /**
@@ -241,8 +321,10 @@ public class SyncServer implements SyncNetCore {
      */
     @Override
     public void closeTemporary() {
-        clients.forEach(ServerClientHandler::close);
-        clients.clear();
+        for (ServerClientHandler ch : clients) {
+            ch.close();
+            unregister(ch);
+        }
         if (serverSocket == null || serverSocket.isClosed()) {
             return;
         }
@@ -260,7 +342,7 @@ public class SyncServer implements SyncNetCore {
      */
     public void remove(ServerClientHandler ch) {
         ch.close();
-        clients.remove(ch);
+        unregister(ch);
         updateClientsWithServerList();
     }
 
@@ -268,7 +350,7 @@ public class SyncServer implements SyncNetCore {
      * @return an unmodifiableList of all clients currently connected
      */
     public List<ServerClientHandler> getClients() {
-        return clients.function(clients -> clients.stream().toList());
+        return List.copyOf(clients);
     }
 
     /**
@@ -277,11 +359,11 @@ public class SyncServer implements SyncNetCore {
     @Override
     public Set<String> getServers() {
         Set<String> out = new HashSet<>();
-        clients.forEach((c) -> {
-            if (c != null && c.isConnected() && c.getName() != null) {
+        for (ServerClientHandler c : clients) {
+            if (c.isConnected() && c.getName() != null) {
                 out.add(c.getName());
             }
-        });
+        }
         return out;
     }
 
@@ -290,6 +372,24 @@ public class SyncServer implements SyncNetCore {
         return eventhandler;
     }
 
+    @Override
+    public BlobStreams getBlobStreams() {
+        return blobStreams;
+    }
+
+    @Override
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    Dispatcher getWriters() {
+        return writers;
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
     @Override
     public String getName() {
         return "proxy";
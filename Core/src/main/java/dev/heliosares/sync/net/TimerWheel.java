@@ -0,0 +1,237 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.SyncCore;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires the response timeouts of every connection of a plugin from one thread, rather than scheduling a platform task per request.
+ * <p>
+ * Timeouts are kept in a ring of buckets, one per tick, each a linked list. Adding and cancelling a timeout is constant time, and each tick only visits the timeouts in its bucket, which includes those due a multiple of the ring's length later.
+ * <p>
+ * The thread only runs while timeouts are due within one turn of the ring. Otherwise it stops and has {@link SyncCore#scheduleAsync(Runnable, long)} start it again shortly before the next one is due, so requests waiting minutes for a response do not keep a thread busy.
+ * <p>
+ * Tasks run on the wheel's thread and must not block.
+ */
+final class TimerWheel {
+    static final long TICK_MILLIS = 5;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int WHEEL_SIZE = 512;
+    /**
+     * How much earlier than the next timeout a stopped thread is started, to make up for a coarse platform scheduler
+     */
+    private static final long WAKE_MARGIN_MILLIS = 100;
+    private static final Map<SyncCore, TimerWheel> wheels = new IdentityHashMap<>();
+
+    private final SyncCore plugin;
+    private final long start = System.nanoTime();
+    // All guarded by this
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    /**
+     * The next tick to be processed
+     */
+    private long tick;
+    private int pending;
+    private boolean running;
+    /**
+     * Counts started threads, a thread stops once another has been started after it
+     */
+    private int generation;
+    private long lastScan;
+    private boolean closed;
+    private int references;
+
+    private TimerWheel(SyncCore plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * @return The plugin's timer wheel. Must be released with {@link #release(TimerWheel)}.
+     */
+    static synchronized TimerWheel acquire(SyncCore plugin) {
+        TimerWheel wheel = wheels.computeIfAbsent(plugin, TimerWheel::new);
+        wheel.references++;
+        return wheel;
+    }
+
+    /**
+     * Once the last reference is released, pending timeouts fire immediately since nothing is left to answer them.
+     */
+    static synchronized void release(@Nullable TimerWheel wheel) {
+        if (wheel == null || --wheel.references > 0) return;
+        wheels.remove(wheel.plugin);
+        wheel.close();
+    }
+
+    /**
+     * Runs a task once the delay has passed, unless cancelled first.
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout;
+        synchronized (this) {
+            long deadline = ticks(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + TICK_NANOS - 1);
+            timeout = new Timeout(task, Math.max(deadline, tick));
+            if (!closed) {
+                timeout.link(buckets);
+                pending++;
+                start();
+                return timeout;
+            }
+        }
+        timeout.fire();
+        return timeout;
+    }
+
+    /**
+     * Must be synchronized on this
+     */
+    private void start() {
+        if (running || closed || pending == 0) return;
+        running = true;
+        lastScan = ticks(System.nanoTime());
+        int generation = ++this.generation;
+        plugin.newThread(() -> run(generation));
+    }
+
+    private synchronized void wake() {
+        start();
+    }
+
+    private long ticks(long nanoTime) {
+        return (nanoTime - start) / TICK_NANOS;
+    }
+
+    private void run(int generation) {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                long now;
+                while ((now = ticks(System.nanoTime())) < tick) {
+                    if (closed || pending == 0) {
+                        running = false;
+                        return;
+                    }
+                    long waitNanos = start + tick * TICK_NANOS - System.nanoTime();
+                    try {
+                        wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    } catch (InterruptedException e) {
+                        running = false;
+                        return;
+                    }
+                }
+                // A bucket holds every deadline with the same remainder, so after falling behind by a whole ring each bucket is visited once
+                for (long t = tick; t <= now && t < tick + WHEEL_SIZE; t++) {
+                    Timeout timeout = buckets[(int) (t % WHEEL_SIZE)];
+                    while (timeout != null) {
+                        Timeout next = timeout.next;
+                        if (timeout.deadline <= now) {
+                            timeout.unlink(buckets);
+                            pending--;
+                            expired.add(timeout);
+                        }
+                        timeout = next;
+                    }
+                }
+                tick = now + 1;
+                if (now - lastScan >= WHEEL_SIZE && pending > 0) {
+                    lastScan = now;
+                    long earliest = earliestDeadline();
+                    if (earliest - now > WHEEL_SIZE) {
+                        running = false;
+                        plugin.scheduleAsync(this::wake, Math.max(0, (earliest - now) * TICK_MILLIS - WAKE_MARGIN_MILLIS));
+                        if (expired.isEmpty()) return;
+                    }
+                }
+            }
+            for (Timeout timeout : expired) timeout.fire();
+            expired.clear();
+            synchronized (this) {
+                if (!running || this.generation != generation) return;
+            }
+        }
+    }
+
+    /**
+     * Must be synchronized on this
+     */
+    private long earliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (Timeout head : buckets) {
+            for (Timeout timeout = head; timeout != null; timeout = timeout.next) earliest = Math.min(earliest, timeout.deadline);
+        }
+        return earliest;
+    }
+
+    private void close() {
+        List<Timeout> remaining = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Timeout head : buckets) {
+                for (Timeout timeout = head; timeout != null; timeout = timeout.next) remaining.add(timeout);
+            }
+            for (Timeout timeout : remaining) timeout.unlink(buckets);
+            pending = 0;
+            notify();
+        }
+        for (Timeout timeout : remaining) timeout.fire();
+    }
+
+    synchronized int getPending() {
+        return pending;
+    }
+
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        // Guarded by the wheel
+        private Timeout prev;
+        private Timeout next;
+        private boolean linked;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        private void link(Timeout[] buckets) {
+            int bucket = (int) (deadline % WHEEL_SIZE);
+            next = buckets[bucket];
+            if (next != null) next.prev = this;
+            buckets[bucket] = this;
+            linked = true;
+        }
+
+        private void unlink(Timeout[] buckets) {
+            if (prev != null) prev.next = next;
+            else buckets[(int) (deadline % WHEEL_SIZE)] = next;
+            if (next != null) next.prev = prev;
+            prev = next = null;
+            linked = false;
+        }
+
+        /**
+         * @return Whether the timeout was pending, false if it has already fired or been cancelled
+         */
+        boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!linked) return false;
+                unlink(buckets);
+                pending--;
+                return true;
+            }
+        }
+
+        private void fire() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                plugin.print("Error running timeout", t);
+            }
+        }
+    }
+}
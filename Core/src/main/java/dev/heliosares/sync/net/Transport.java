@@ -0,0 +1,102 @@
+package dev.heliosares.sync.net;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Moves length-prefixed frames between the two ends of a {@link SocketConnection}. Frames are opaque here, encryption and compression are handled by the connection.
+ * <p>
+ * {@link StreamTransport} blocks a thread per connection. {@link NioTransport} multiplexes connections over the event loops of a {@link NioEventLoopGroup}, see {@link dev.heliosares.sync.SyncCore#getNetworkThreads()}.
+ */
+interface Transport {
+    /**
+     * @param data       The frame, without its length prefix
+     * @param compressed Whether the length prefix carries {@link FrameCompression#FLAG_COMPRESSED}
+     */
+    record Frame(byte[] data, boolean compressed) {
+    }
+
+    interface FrameListener {
+        /**
+         * Called on the event loop for each frame, in order. Throwing closes the transport.
+         */
+        void frame(Frame frame) throws Exception;
+
+        /**
+         * Called once when the transport is closed, from either end.
+         *
+         * @param cause Why it closed
+         */
+        void closed(Exception cause);
+    }
+
+    /**
+     * Blocks until the next frame is received.
+     */
+    Frame read() throws IOException;
+
+    /**
+     * Buffers a frame. It is only guaranteed to be sent after {@link #flush()}. Not thread safe, callers must synchronize writing.
+     */
+    void write(Frame frame) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * @return Whether frames can be received by {@link #readAsync(FrameListener)} rather than a thread blocking on {@link #read()}
+     */
+    default boolean isNonBlocking() {
+        return false;
+    }
+
+    /**
+     * Switches to delivering frames to the listener instead of {@link #read()}. Any frames already received are delivered first.
+     */
+    default void readAsync(FrameListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return Whether the current thread is the one frames are delivered on, which must never wait for writes to complete
+     */
+    default boolean inEventLoop() {
+        return false;
+    }
+
+    boolean isOpen();
+
+    String getRemoteAddress();
+
+    void close();
+
+    /**
+     * @return The length of the frame following the prefix
+     */
+    static int frameLength(int prefix) throws IOException {
+        int size = prefix & ~FrameCompression.FLAG_COMPRESSED;
+        if (size > SocketConnection.MAX_FRAME_SIZE) {
+            throw new IOException("Packet size too large (" + size + ">" + SocketConnection.MAX_FRAME_SIZE + ")");
+        }
+        return size;
+    }
+
+    static int prefix(Frame frame) {
+        return frame.data().length | (frame.compressed() ? FrameCompression.FLAG_COMPRESSED : 0);
+    }
+
+    /**
+     * @param loops The event loops to use, or null to block. Only sockets with a channel can be non-blocking.
+     */
+    static Transport of(@Nullable NioEventLoopGroup loops, Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (loops == null || channel == null) return new StreamTransport(socket);
+        return loops.register(channel);
+    }
+
+    static Transport connect(@Nullable NioEventLoopGroup loops, String host, int port) throws IOException {
+        if (loops == null) return new StreamTransport(new Socket(host, port));
+        return loops.connect(host, port);
+    }
+}
@@ -15,25 +15,87 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class UserManager implements NetEventHandler.PacketConsumer {
+    /**
+     * How long changed variables are collected before they are sent together, one tick
+     */
+    static final long UPDATE_INTERVAL_MILLIS = 50;
+    /**
+     * Players are split into this many buckets by the first byte of their UUID, see {@link #resync()}
+     */
+    static final int DIGEST_BUCKETS = 256;
+    static final long RESYNC_TIMEOUT_MILLIS = 5000;
+    /**
+     * Servers before this protocol version only understand the older {@code hash} field, see {@link #getLegacyHash()}
+     */
+    static final int DIGEST_PROTOCOL_VERSION = 6;
+    /**
+     * Servers before this protocol version only understand single {@code update} payloads, see {@link #toLegacyUpdates(Packet)}
+     */
+    static final int BATCH_PROTOCOL_VERSION = 6;
+    /**
+     * How many recent changes the proxy keeps for servers catching up after reconnecting, see {@link #catchUp()}
+     */
+    public static final int DEFAULT_DELTA_LOG_SIZE = 4096;
 
     private final SyncNetCore sync;
     private final SyncCore plugin;
     private final ConcurrentMap<HashMap<UUID, PlayerData>, UUID, PlayerData> players = new ConcurrentMap<>(new HashMap<>());
-    private int lastHash;
+    private final Map<String, SyncPolicy> syncPolicies;
+    // Sum of every player's digest, see PlayerData#setUserManager
+    private final AtomicLong digest = new AtomicLong();
+    private final AtomicLongArray bucketDigests = new AtomicLongArray(DIGEST_BUCKETS);
+    private long lastDigest;
+    private final AtomicBoolean resyncing = new AtomicBoolean();
+
+    // Proxy only. Every change is numbered and the latest are kept, so servers can catch up on the ones they missed
+    @Nullable
+    private final JSONObject[] deltaLog;
+    // Changes when the proxy restarts, so numbers from before are not mistaken for current ones
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final Object logLock = new Object();
+    // Guarded by logLock
+    private long seq;
+    // The dispatcher lane sending numbered changes, see #sendInOrder
+    private final Object sendLane = new Object();
+
+    private final Object seqLock = new Object();
+    // Client only, all guarded by seqLock
+    private long lastSeq;
+    private long lastEpoch;
+    private boolean catchingUp;
+
+    private final Object dirtyLock = new Object();
+    // All guarded by dirtyLock
+    private Map<UUID, Map<String, PlayerData.Variable<?>>> dirty = new LinkedHashMap<>();
+    private List<PendingSet> pendingSets = new ArrayList<>();
+    private boolean updateScheduled;
+
+    private record PendingSet(CompletableFuture<Boolean> result, Runnable revert) {
+    }
 
     public UserManager(SyncCore plugin, SyncNetCore client) {
         this.sync = client;
         this.plugin = plugin;
+        this.syncPolicies = new ConcurrentHashMap<>(plugin.getSyncPolicies());
+        this.deltaLog = sync instanceof SyncServer && plugin instanceof SyncCoreProxy proxy ? new JSONObject[Math.max(0, proxy.getPlayerDataLogSize())] : null;
 
         if (sync instanceof SyncServer && plugin instanceof SyncCoreProxy syncCoreProxy) {
             plugin.print("Registering hash task");
@@ -55,55 +117,335 @@ public class UserManager implements NetEventHandler.PacketConsumer {
     public void sendHash() throws IOException {
         if (!(sync instanceof SyncServer)) throw new IllegalStateException("Can't send hash from client");
 
-        int hash = UserManager.this.hashCode();
-        plugin.debug("Considering hash, " + hash);
-        if (hash == lastHash) {
+        long digest = getDigest();
+        plugin.debug("Considering hash, " + digest);
+        if (digest == lastDigest) {
             plugin.debug("same hash");
             return;
         }
         plugin.debug("sending");
-        lastHash = hash;
-        sync.send(new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("hash", hash)));
+        lastDigest = digest;
+        JSONObject payload = new JSONObject().put("digest", digest);
+        // Walks every player, so only computed while an older server is connected
+        if (((SyncServer) sync).getClients().stream().anyMatch(client -> client.getProtocolVersion() < DIGEST_PROTOCOL_VERSION)) {
+            payload.put("hash", getLegacyHash());
+        }
+        synchronized (logLock) {
+            // Changes forwarded from other servers are not numbered, so this tells servers they received everything up to seq
+            sendInOrder(null, new Packet(null, PacketType.PLAYER_DATA, payload.put("seq", seq)));
+        }
     }
 
     @Override
     public void execute(String server, Packet packet) {
-        if (packet.getPayload().has("hash") && !packet.isResponse() && plugin.getSync() instanceof SyncClient) {
-            int hash = packet.getPayload().getInt("hash");
-            int myHash = hashCode();
-            if (hash != myHash) request();
+        if (packet.getPayload().has("seq") && !packet.isResponse() && plugin.getSync() instanceof SyncClient) {
+            received(packet.getPayload().getLong("seq"));
+        }
+        if (packet.getPayload().has("digest") && !packet.isResponse() && plugin.getSync() instanceof SyncClient) {
+            long digest = packet.getPayload().getLong("digest");
+            if (digest != getDigest()) resync();
+        } else if (packet.getPayload().has("hash") && !packet.isResponse() && plugin.getSync() instanceof SyncClient) {
+            // From a proxy which predates digests, it can only send every player
+            if (packet.getPayload().getInt("hash") != getLegacyHash()) request();
+        } else if (packet.getPayload().has("batch")) {
+            applyAndLog(packet, () -> handleBatch(packet));
+        } else if (packet.getPayload().has("deltas") && plugin.getSync() instanceof SyncClient) {
+            JSONArray deltas = packet.getPayload().getJSONArray("deltas");
+            for (int i = 0; i < deltas.length(); i++) {
+                execute(server, new Packet(null, PacketType.PLAYER_DATA, deltas.getJSONObject(i)));
+            }
+            caughtUp(packet.getPayload());
         } else if (packet.getPayload().has("update")) {
-            String field = packet.getPayload().getString("update");
-            UUID of = UUID.fromString(packet.getPayload().getString("uuid"));
-            PlayerData data = getPlayer(of);
-            if (data == null) {
-                plugin.warning("Tried to update " + field + " of " + of + ", but no PlayerData was found.");
-                return;
+            applyAndLog(packet, () -> handleUpdate(packet));
+        } else if (packet.getPayload().has("buckets") && !packet.isResponse() && plugin.getSync() instanceof SyncServer) {
+            try {
+                sendDifferingBuckets(server, packet);
+            } catch (IOException e) {
+                plugin.print(null, e);
             }
-            if (!field.startsWith("custom.") && packet.getForward() != null && !data.getServer().equals(packet.getForward())) {
-                plugin.warning(packet.getForward() + " tried to update " + data.getName() + "'s data on server " + data.getServer());
-                return;
+        } else if (packet.getPayload().has("fetch") && !packet.isResponse() && plugin.getSync() instanceof SyncServer) {
+            try {
+                sendFetched(server, packet);
+            } catch (IOException e) {
+                plugin.print(null, e);
             }
-            data.handleUpdate(field, packet.getPayload());
         } else if (packet.getPayload().has("request") && plugin.getSync() instanceof SyncServer) {
             try {
                 sendPlayers(server, packet);
             } catch (IOException e) {
                 plugin.print(null, e);
             }
-        } else if (packet.getPayload().has("join") || packet.getPayload().has("set")) {
-            boolean set = packet.getPayload().has("set");
-            JSONArray array = packet.getPayload().getJSONArray(set ? "set" : "join");
+        } else if (packet.getPayload().has("set")) {
+            JSONArray array = packet.getPayload().getJSONArray("set");
             players.consume(players -> {
-                if (set) players.clear();
-                players.putAll(getPlayerData(array));
+                players.values().forEach(data -> data.setUserManager(null));
+                players.clear();
+                getPlayerData(array).values().forEach(data -> put(players, data));
             });
+            if (packet.getPayload().has("epoch")) caughtUp(packet.getPayload());
+        } else if (packet.getPayload().has("join")) {
+            JSONArray array = packet.getPayload().getJSONArray("join");
+            applyAndLog(packet, () -> players.consume(players -> getPlayerData(array).values().forEach(data -> put(players, data))));
         } else if (packet.getPayload().has("quit")) {
             JSONArray array = packet.getPayload().getJSONArray("quit");
-            players.consume(players -> array.toList().forEach(uuid -> players.remove(UUID.fromString((String) uuid))));
+            applyAndLog(packet, () -> players.consume(players -> array.toList().forEach(uuid -> remove(players, UUID.fromString((String) uuid)))));
         }
     }
 
+    private void handleUpdate(Packet packet) {
+        String field = packet.getPayload().getString("update");
+        UUID of = UUID.fromString(packet.getPayload().getString("uuid"));
+        PlayerData data = getPlayer(of);
+        if (data == null) {
+            plugin.warning("Tried to update " + field + " of " + of + ", but no PlayerData was found.");
+            return;
+        }
+        if (!field.startsWith("custom.") && packet.getForward() != null && !data.getServer().equals(packet.getForward())) {
+            plugin.warning(packet.getForward() + " tried to update " + data.getName() + "'s data on server " + data.getServer());
+            return;
+        }
+        data.handleUpdate(field, packet.getPayload());
+    }
+
+    /**
+     * Applies a change, and on the proxy logs it as received, so servers which missed it being forwarded can catch up
+     */
+    private void applyAndLog(Packet packet, Runnable apply) {
+        if (deltaLog == null) {
+            apply.run();
+            return;
+        }
+        synchronized (logLock) {
+            // Applied while holding the lock, so the log is in the order the changes were applied
+            apply.run();
+            JSONObject payload = packet.getPayload();
+            log(new JSONObject(payload, JSONObject.getNames(payload)));
+        }
+    }
+
+    /**
+     * Numbers a change and keeps it in the log. Must be synchronized on logLock, and the change must not be modified afterwards.
+     */
+    private JSONObject log(JSONObject change) {
+        change.put("seq", ++seq);
+        if (deltaLog != null && deltaLog.length > 0) deltaLog[(int) (seq % deltaLog.length)] = change;
+        return change;
+    }
+
+    /**
+     * @return The changes since those the requester last received, or null if they are not all in the log anymore. Must be synchronized on logLock.
+     */
+    @Nullable
+    private JSONObject getDeltas(JSONObject request) {
+        if (deltaLog == null || request.optLong("epoch") != epoch) return null;
+        long since = request.optLong("since", -1);
+        if (since < 0 || since > seq || seq - since > deltaLog.length) return null;
+        JSONArray deltas = new JSONArray();
+        for (long i = since + 1; i <= seq; i++) deltas.put(deltaLog[(int) (i % deltaLog.length)]);
+        return new JSONObject().put("deltas", deltas);
+    }
+
+    private void received(long seq) {
+        synchronized (seqLock) {
+            // While catching up, the changes before this one may not have been received yet
+            if (!catchingUp) lastSeq = Math.max(lastSeq, seq);
+        }
+    }
+
+    private void caughtUp(JSONObject response) {
+        synchronized (seqLock) {
+            lastSeq = response.getLong("seq");
+            lastEpoch = response.getLong("epoch");
+            catchingUp = false;
+        }
+    }
+
+    /**
+     * Must be called from within players.consume
+     */
+    private void put(Map<UUID, PlayerData> players, PlayerData data) {
+        PlayerData old = players.put(data.getUUID(), data);
+        if (old != null && old != data) old.setUserManager(null);
+        data.setUserManager(this);
+    }
+
+    /**
+     * Must be called from within players.consume
+     */
+    private void remove(Map<UUID, PlayerData> players, UUID uuid) {
+        PlayerData old = players.remove(uuid);
+        if (old != null) old.setUserManager(null);
+    }
+
+    void addDigest(@Nullable UUID uuid, long delta) {
+        bucketDigests.addAndGet(getBucket(uuid), delta);
+        digest.addAndGet(delta);
+    }
+
+    private static int getBucket(@Nullable UUID uuid) {
+        return uuid == null ? 0 : (int) (uuid.getMostSignificantBits() >>> 56);
+    }
+
+    /**
+     * Finds which players differ from the proxy's and fetches only those, instead of every player. The digest of each bucket of players is compared first, then the digest of each player in the buckets which differ.
+     * <p>
+     * If that fails, every player is requested instead.
+     */
+    private void resync() {
+        if (!resyncing.compareAndSet(false, true)) return;
+        JSONObject buckets = new JSONObject();
+        players.consume(players -> {
+            for (int i = 0; i < DIGEST_BUCKETS; i++) {
+                // Empty buckets are left out
+                long digest = bucketDigests.get(i);
+                if (digest != 0) buckets.put(String.valueOf(i), digest);
+            }
+        });
+        sync.request(null, new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("buckets", buckets)), RESYNC_TIMEOUT_MILLIS)
+                .thenCompose(this::fetchDiffering)
+                .whenComplete((v, t) -> {
+                    resyncing.set(false);
+                    if (t == null) return;
+                    plugin.print("Failed to resync player data, requesting all of it", t);
+                    request();
+                });
+    }
+
+    /**
+     * @param response The digests of the proxy's players in each bucket which differs
+     */
+    private CompletableFuture<Void> fetchDiffering(Packet response) {
+        JSONObject digests = response.getPayload().getJSONObject("digests");
+        JSONArray fetch = new JSONArray();
+        String self = plugin.getSync().getName();
+        players.consume(players -> {
+            Set<UUID> quit = new HashSet<>();
+            for (Entry<UUID, PlayerData> entry : players.entrySet()) {
+                // This server owns its own players' data, the proxy's copy may lag behind values held by a sync policy
+                if (Objects.equals(self, entry.getValue().getServer())) continue;
+                JSONObject bucket = digests.optJSONObject(String.valueOf(getBucket(entry.getKey())));
+                if (bucket != null && !bucket.has(entry.getKey().toString())) quit.add(entry.getKey());
+            }
+            quit.forEach(uuid -> remove(players, uuid));
+            for (String key : digests.keySet()) {
+                JSONObject bucket = digests.getJSONObject(key);
+                for (String uuid : bucket.keySet()) {
+                    PlayerData data = players.get(UUID.fromString(uuid));
+                    if (data != null && Objects.equals(self, data.getServer())) continue;
+                    if (data == null || data.getDigest() != bucket.getLong(uuid)) fetch.put(uuid);
+                }
+            }
+            plugin.debug("Resync: " + digests.length() + " buckets differ, removed " + quit.size() + " players, fetching " + fetch.length());
+        });
+        if (fetch.isEmpty()) return CompletableFuture.completedFuture(null);
+        return sync.request(null, new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("fetch", fetch)), RESYNC_TIMEOUT_MILLIS).thenAccept(fetched -> {
+            JSONArray array = fetched.getPayload().getJSONArray("fetched");
+            players.consume(players -> getPlayerData(array).values().forEach(data -> put(players, data)));
+        });
+    }
+
+    private void sendDifferingBuckets(String server, Packet packet) throws IOException {
+        JSONObject theirs = packet.getPayload().getJSONObject("buckets");
+        JSONObject digests = new JSONObject();
+        players.consume(players -> {
+            for (int i = 0; i < DIGEST_BUCKETS; i++) {
+                if (bucketDigests.get(i) != theirs.optLong(String.valueOf(i), 0)) digests.put(String.valueOf(i), new JSONObject());
+            }
+            if (digests.isEmpty()) return;
+            players.forEach((uuid, data) -> {
+                JSONObject bucket = digests.optJSONObject(String.valueOf(getBucket(uuid)));
+                if (bucket != null) bucket.put(uuid.toString(), data.getDigest());
+            });
+        });
+        sync.send(server, packet.createResponse(new JSONObject().put("digests", digests)));
+    }
+
+    private void sendFetched(String server, Packet packet) throws IOException {
+        JSONArray fetched = new JSONArray();
+        for (Object uuid : packet.getPayload().getJSONArray("fetch")) {
+            PlayerData data = getPlayer(UUID.fromString((String) uuid));
+            if (data != null) fetched.put(data.toJSON());
+        }
+        sync.send(server, packet.createResponse(new JSONObject().put("fetched", fetched)));
+    }
+
+    /**
+     * @return A digest of every player's data, which is the same on every server holding the same data. Kept up to date as the data changes, so this is cheap.
+     */
+    public long getDigest() {
+        // Batches are applied while holding the lock, so this never sees half of one
+        return players.function(players -> digest.get());
+    }
+
+    /**
+     * @return The hash of every player's data sent by servers before {@link #DIGEST_PROTOCOL_VERSION}. Walks every player, unlike {@link #getDigest()}.
+     */
+    private int getLegacyHash() {
+        return players.hashCode();
+    }
+
+    /**
+     * Applies every update in the batch at once, so the batch is never seen half applied. Updates to a player which are not allowed or not valid are skipped together.
+     */
+    private void handleBatch(Packet packet) {
+        JSONObject batch = packet.getPayload().getJSONObject("batch");
+        List<Runnable> updates = new ArrayList<>();
+        for (String key : batch.keySet()) {
+            UUID of;
+            try {
+                of = UUID.fromString(key);
+            } catch (IllegalArgumentException e) {
+                plugin.warning("Malformed UUID in PlayerData batch: " + key);
+                continue;
+            }
+            PlayerData data = getPlayer(of);
+            if (data == null) {
+                plugin.warning("Tried to update " + of + ", but no PlayerData was found.");
+                continue;
+            }
+            JSONObject fields = batch.getJSONObject(key);
+            List<Runnable> playerUpdates = new ArrayList<>();
+            try {
+                for (String field : fields.keySet()) {
+                    if (!field.startsWith("custom.") && packet.getForward() != null && !data.getServer().equals(packet.getForward())) {
+                        throw new IllegalArgumentException(packet.getForward() + " tried to update " + data.getName() + "'s data on server " + data.getServer());
+                    }
+                    playerUpdates.add(data.prepareUpdate(field, fields.get(field)));
+                }
+            } catch (IllegalArgumentException | JSONException e) {
+                plugin.warning("Skipping update of " + data.getName() + ": " + e.getMessage());
+                continue;
+            }
+            updates.addAll(playerUpdates);
+        }
+        players.consume(players -> updates.forEach(Runnable::run));
+    }
+
+    /**
+     * @return Whether the packet is an update batch, which servers before {@link #BATCH_PROTOCOL_VERSION} do not understand
+     */
+    static boolean isBatch(Packet packet) {
+        return packet.getType() == PacketType.PLAYER_DATA && packet.getPayload() != null && packet.getPayload().has("batch");
+    }
+
+    /**
+     * @param packet An update batch, see {@link #isBatch(Packet)}
+     * @return The updates in the batch as single update packets, one for each changed variable
+     */
+    static List<Packet> toLegacyUpdates(Packet packet) {
+        JSONObject batch = packet.getPayload().getJSONObject("batch");
+        List<Packet> updates = new ArrayList<>();
+        for (String uuid : batch.keySet()) {
+            JSONObject fields = batch.getJSONObject(uuid);
+            for (String field : fields.keySet()) {
+                Packet update = new Packet(packet.getChannel(), PacketType.PLAYER_DATA, PlayerData.toLegacyUpdate(uuid, field, fields.get(field)));
+                update.setOrigin(packet.getOrigin());
+                updates.add(update);
+            }
+        }
+        return updates;
+    }
+
     @CheckReturnValue
     private Map<UUID, PlayerData> getPlayerData(JSONArray arr) {
         Map<UUID, PlayerData> list = new HashMap<>();
@@ -120,21 +462,119 @@ public class UserManager implements NetEventHandler.PacketConsumer {
     }
 
     protected void sendUpdatePacket(JSONObject o) throws IOException {
-        sync.send("all", new Packet(null, PacketType.PLAYER_DATA, o));
+        if (deltaLog == null) {
+            sync.send("all", new Packet(null, PacketType.PLAYER_DATA, o));
+            return;
+        }
+        synchronized (logLock) {
+            // Queued while holding the lock, so servers receive changes in the order they are numbered
+            sendInOrder("all", new Packet(null, PacketType.PLAYER_DATA, log(o)));
+        }
+    }
+
+    /**
+     * Sends a packet after every other packet sent this way, without waiting for it to be written. Called while holding logLock, so packets go out in the order their changes were numbered, while a server slow to take them does not hold up the lock.
+     */
+    private void sendInOrder(@Nullable String server, Packet packet) {
+        sync.getDispatcher().execute(sendLane, () -> {
+            try {
+                sync.send(server, packet);
+            } catch (IOException e) {
+                plugin.print(null, e);
+            }
+        });
+    }
+
+    /**
+     * Limits how often changes this server makes to a variable are sent, for every player
+     *
+     * @param variable The name of the variable, such as {@code health} or {@code custom.s.MyPlugin:key}
+     * @param policy   The policy, or null to send every change
+     */
+    @SuppressWarnings("unused")
+    public void setSyncPolicy(String variable, @Nullable SyncPolicy policy) {
+        if (policy == null) syncPolicies.remove(variable);
+        else syncPolicies.put(variable, policy);
+    }
+
+    @Nullable
+    public SyncPolicy getSyncPolicy(String variable) {
+        return syncPolicies.get(variable);
+    }
+
+    /**
+     * Queues a changed variable to be sent with the next batch. A variable changed several times before then is sent once, with its latest value.
+     *
+     * @param result Completed once the batch is sent, or failed to send
+     * @param revert Undoes the change if the batch fails to send
+     */
+    void markDirty(PlayerData data, PlayerData.Variable<?> variable, CompletableFuture<Boolean> result, Runnable revert) {
+        synchronized (dirtyLock) {
+            dirty.computeIfAbsent(data.getUUID(), uuid -> new LinkedHashMap<>()).put(variable.name, variable);
+            pendingSets.add(new PendingSet(result, revert));
+            if (updateScheduled) return;
+            updateScheduled = true;
+        }
+        plugin.scheduleAsync(this::sendUpdates, UPDATE_INTERVAL_MILLIS);
+    }
+
+    private void sendUpdates() {
+        Map<UUID, Map<String, PlayerData.Variable<?>>> dirty;
+        List<PendingSet> pendingSets;
+        synchronized (dirtyLock) {
+            dirty = this.dirty;
+            pendingSets = this.pendingSets;
+            this.dirty = new LinkedHashMap<>();
+            this.pendingSets = new ArrayList<>();
+            updateScheduled = false;
+        }
+        boolean success = false;
+        try {
+            JSONObject batch = new JSONObject();
+            dirty.forEach((uuid, variables) -> {
+                JSONObject fields = new JSONObject();
+                variables.forEach((name, variable) -> fields.put(name, variable.toJSONValue()));
+                batch.put(uuid.toString(), fields);
+            });
+            if (sync instanceof SyncClient client && client.getProtocolVersion() < BATCH_PROTOCOL_VERSION) {
+                // The proxy predates batches
+                for (Packet update : toLegacyUpdates(new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("batch", batch)))) {
+                    sync.send("all", update);
+                }
+            } else if (!batch.isEmpty()) sendUpdatePacket(new JSONObject().put("batch", batch));
+            success = true;
+        } catch (JSONException | IOException e) {
+            plugin.print(null, e);
+        }
+        if (!success) {
+            for (int i = pendingSets.size() - 1; i >= 0; i--) pendingSets.get(i).revert().run();
+        }
+        for (PendingSet pendingSet : pendingSets) pendingSet.result().complete(success);
     }
 
+    /**
+     * Sends every player, or if the requester is catching up, only the changes it missed when they are still logged
+     */
     public void sendPlayers(@Nullable String server, @Nullable Packet requester) throws IOException {
         if (sync instanceof SyncClient) return; // clients shouldn't be sending player-data
 
-        Collection<PlayerData> players = getPlayers(plugin.getSync().getName()).values();
-        JSONObject payload = new JSONObject().put("set", new JSONArray(players.stream().map(PlayerData::toJSON).collect(Collectors.toList())));
-        Packet packet;
-        if (requester == null) {
-            packet = new Packet(null, PacketType.PLAYER_DATA, payload);
-        } else {
-            packet = requester.createResponse(payload);
+        // Holding the lock, so the players sent include exactly the changes up to seq
+        synchronized (logLock) {
+            JSONObject payload = requester == null ? null : getDeltas(requester.getPayload());
+            if (payload == null) {
+                Collection<PlayerData> players = getPlayers(plugin.getSync().getName()).values();
+                payload = new JSONObject().put("set", new JSONArray(players.stream().map(PlayerData::toJSON).collect(Collectors.toList())));
+            }
+            if (deltaLog != null) payload.put("seq", seq).put("epoch", epoch);
+            Packet packet;
+            if (requester == null) {
+                packet = new Packet(null, PacketType.PLAYER_DATA, payload);
+            } else {
+                packet = requester.createResponse(payload);
+            }
+            if (deltaLog == null) sync.send(server, packet);
+            else sendInOrder(server, packet);
         }
-        sync.send(server, packet);
     }
 
     @Nullable
@@ -190,14 +630,14 @@ public class UserManager implements NetEventHandler.PacketConsumer {
     public void addPlayer(String name, UUID uuid, String server, boolean sendPacket) {
         PlayerData data = new PlayerData(plugin, server, name, uuid, false);
 
-        players.put(uuid, data);
+        players.consume(players -> put(players, data));
 
         if (!sendPacket) return;
 
         plugin.debug("Sending join for " + data.getName());
         plugin.runAsync(() -> {
             try {
-                sync.send("all", new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("join", new JSONArray().put(data.toJSON()))));
+                sendUpdatePacket(new JSONObject().put("join", new JSONArray().put(data.toJSON())));
             } catch (JSONException | IOException e) {
                 plugin.print(null, e);
             }
@@ -208,10 +648,13 @@ public class UserManager implements NetEventHandler.PacketConsumer {
 
     public void removePlayer(UUID uuid) {
         plugin.debug("Sending quit for " + uuid.toString());
-        players.remove(uuid);
+        players.consume(players -> remove(players, uuid));
+        synchronized (dirtyLock) {
+            dirty.remove(uuid);
+        }
         plugin.runAsync(() -> {
             try {
-                sync.send("all", new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("quit", new JSONArray().put(uuid.toString()))));
+                sendUpdatePacket(new JSONObject().put("quit", new JSONArray().put(uuid.toString())));
             } catch (JSONException | IOException e) {
                 plugin.print(null, e);
             }
@@ -227,6 +670,23 @@ public class UserManager implements NetEventHandler.PacketConsumer {
         }
     }
 
+    /**
+     * Asks the proxy for the changes since the last one received, such as after reconnecting. The proxy sends every player instead if it no longer has all of those changes, or has restarted.
+     */
+    protected void catchUp() {
+        if (sync instanceof SyncServer) throw new IllegalStateException("Can't send request for user data from server");
+        JSONObject payload = new JSONObject().put("request", 1);
+        synchronized (seqLock) {
+            catchingUp = true;
+            if (lastEpoch != 0) payload.put("since", lastSeq).put("epoch", lastEpoch);
+        }
+        try {
+            sync.send(null, new Packet(null, PacketType.PLAYER_DATA, payload));
+        } catch (JSONException | IOException e) {
+            plugin.print(null, e);
+        }
+    }
+
     @CheckReturnValue
     @SuppressWarnings("unused")
     public Set<PlayerData> getAllPlayerData() {
@@ -247,6 +707,6 @@ public class UserManager implements NetEventHandler.PacketConsumer {
 
     @Override
     public int hashCode() {
-        return players.hashCode();
+        return Long.hashCode(getDigest());
     }
 }
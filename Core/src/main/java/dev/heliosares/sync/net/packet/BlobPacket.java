@@ -3,10 +3,11 @@ package dev.heliosares.sync.net.packet;
 import dev.heliosares.sync.net.PacketType;
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
 import java.util.HexFormat;
 
 public class BlobPacket extends Packet {
-    private byte[] blob;
+    private ByteBuffer blob;
 
     public BlobPacket(String channel, PacketType type, JSONObject payload) {
         super(channel, type, payload, null, false);
@@ -20,12 +21,36 @@ public class BlobPacket extends Packet {
         super(json);
     }
 
+    /**
+     * @return The blob as an array. If the blob is a view into a received frame, this is a copy, see {@link #getBlobBuffer()}.
+     */
     public byte[] getBlob() {
-        return blob;
+        if (blob == null) return null;
+        if (blob.hasArray() && blob.arrayOffset() == 0 && blob.position() == 0 && blob.remaining() == blob.array().length) {
+            return blob.array();
+        }
+        byte[] bytes = new byte[blob.remaining()];
+        blob.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return A read-only view of the blob, or null. Received blobs are not copied out of the frame which carried them.
+     */
+    public ByteBuffer getBlobBuffer() {
+        return blob == null ? null : blob.asReadOnlyBuffer();
     }
 
     public Packet setBlob(byte[] blob) {
-        this.blob = blob;
+        this.blob = blob == null ? null : ByteBuffer.wrap(blob);
+        return this;
+    }
+
+    /**
+     * @param blob The blob, from its position to its limit. The buffer must not be modified afterwards.
+     */
+    public Packet setBlob(ByteBuffer blob) {
+        this.blob = blob == null ? null : blob.slice();
         return this;
     }
 
@@ -52,11 +77,13 @@ public class BlobPacket extends Packet {
         if (blob == null) {
             line += "=null";
         } else {
-            line += "[" + blob.length + "]=";
+            line += "[" + blob.remaining() + "]=";
             if (this.getType() == PacketType.P2P_AUTH) {
                 line += "REDACTED";
             } else {
-                String encoded = HexFormat.of().formatHex(blob);
+                byte[] bytes = new byte[Math.min(blob.remaining(), 257)];
+                blob.duplicate().get(bytes);
+                String encoded = HexFormat.of().formatHex(bytes);
                 if (encoded.length() > 512) encoded = encoded.substring(0, 512) + "...";
                 line += encoded;
             }
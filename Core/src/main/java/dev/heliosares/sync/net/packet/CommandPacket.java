@@ -24,6 +24,41 @@ public class CommandPacket extends Packet {
         return new Param.StringParam(getPayload(), "command");
     }
 
+    /**
+     * Whether the sender waits for the command to finish, see {@link dev.heliosares.sync.net.SyncNetCore#executeCommand(java.util.Collection, String, long)}. The last response then has {@link #done()} set.
+     */
+    public Param.BooleanParam gather() {
+        return new Param.BooleanParam(getPayload(), "gather");
+    }
+
+    /**
+     * Output, in responses. Several lines are separated by line breaks.
+     */
+    public Param.StringParam msg() {
+        return new Param.StringParam(getPayload(), "msg");
+    }
+
+    /**
+     * Lines of output, in responses to a {@link #gather()} request
+     */
+    public Param.StringListParam lines() {
+        return new Param.StringListParam(getPayload(), "lines");
+    }
+
+    /**
+     * Set in the last response to a {@link #gather()} request, which may still carry {@link #lines()}
+     */
+    public Param.BooleanParam done() {
+        return new Param.BooleanParam(getPayload(), "done");
+    }
+
+    /**
+     * The {@link dev.heliosares.sync.net.CommandResult.Status} of a finished command, in the last response
+     */
+    public Param.StringParam status() {
+        return new Param.StringParam(getPayload(), "status");
+    }
+
     /**
      * @see Packet#createResponse(JSONObject)
      */
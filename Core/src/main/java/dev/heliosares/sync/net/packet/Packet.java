@@ -9,7 +9,8 @@ import java.util.function.Consumer;
 public class Packet {
     private final String channel;
     private final PacketType type;
-    private final JSONObject payload;
+    private volatile JSONObject payload;
+    private LazyPayload lazyPayload;
     private IDProvider.ID responseID;
     private IDProvider.ID replyToResponseID;
     private String origin;
@@ -28,7 +29,7 @@ public class Packet {
     }
 
     /**
-     * Creates a packet from a JSONObject
+     * Creates a packet from a JSONObject. The payload under "pl" may be a {@link LazyPayload}, in which case it is only decoded when first accessed.
      *
      * @param packet The packet to parse
      * @see #toJSON()
@@ -46,7 +47,9 @@ public class Packet {
         if (packet.has("ch")) channel = packet.getString("ch");
         else channel = null;
 
-        if (packet.has("pl")) payload = packet.getJSONObject("pl");
+        Object pl = packet.opt("pl");
+        if (pl instanceof LazyPayload lazy) lazyPayload = lazy;
+        else if (pl != null) payload = packet.getJSONObject("pl");
         else payload = new JSONObject();
 
         if (packet.has("fw")) forward = packet.getString("fw");
@@ -131,6 +134,7 @@ public class Packet {
         if (responseID != null) json.put("rid", responseID.combined());
         if (replyToResponseID != null) json.put("rtr", replyToResponseID.combined());
         json.put("ch", channel);
+        JSONObject payload = getPayload();
         if (payload != null && !payload.isEmpty()) json.put("pl", payload);
         json.put("fw", forward);
         json.put("or", origin);
@@ -172,15 +176,23 @@ public class Packet {
     }
 
     public JSONObject getPayload() {
-        return payload;
+        JSONObject payload = this.payload;
+        if (payload != null) return payload;
+        synchronized (this) {
+            if (this.payload == null && lazyPayload != null) {
+                this.payload = lazyPayload.decode();
+                lazyPayload = null;
+            }
+            return this.payload;
+        }
     }
 
     public Object getPayload(String key) {
-        return payload.opt(key);
+        return getPayload().opt(key);
     }
 
     public String getPayloadString() {
-        return payload.toString();
+        return getPayload().toString();
     }
 
     public String getForward() {
@@ -193,7 +205,17 @@ public class Packet {
     }
 
     public Packet modifyPayload(Consumer<JSONObject> payloadModifier) {
-        payloadModifier.accept(payload);
+        payloadModifier.accept(getPayload());
         return this;
     }
+
+    /**
+     * A payload which has been received but not decoded yet, so packets which are dropped or passed on never pay for it.
+     *
+     * @see #Packet(JSONObject)
+     */
+    @FunctionalInterface
+    public interface LazyPayload {
+        JSONObject decode() throws MalformedPacketException;
+    }
 }
@@ -1,9 +1,12 @@
 package dev.heliosares.sync.net.packet;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.annotation.Nullable;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 public abstract class Param<T> {
@@ -27,11 +30,18 @@ public abstract class Param<T> {
     }
 
     public void set(T value) {
-        handle.put(key, value);
+        handle.put(key, value == null ? null : unmap(value));
     }
 
     protected abstract T map(Object o);
 
+    /**
+     * @return The value as stored in the payload
+     */
+    protected Object unmap(T value) {
+        return value;
+    }
+
     public void requireNonnull() {
         if (get() != null) return;
         throw new MalformedPacketException("No value for " + key);
@@ -106,4 +116,23 @@ public abstract class Param<T> {
             return (Long) o;
         }
     }
+
+    public static class StringListParam extends Param<List<String>> {
+        StringListParam(JSONObject handle, String key) {
+            super(handle, key);
+        }
+
+        @Override
+        protected Object unmap(List<String> value) {
+            return new JSONArray(value);
+        }
+
+        @Override
+        protected List<String> map(Object o) {
+            JSONArray array = (JSONArray) o;
+            List<String> out = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) out.add(array.getString(i));
+            return out;
+        }
+    }
 }
@@ -1,26 +1,41 @@
 package dev.heliosares.sync;
 
+import dev.heliosares.sync.net.CommandOutput;
+import dev.heliosares.sync.net.CommandResult;
+import dev.heliosares.sync.net.Dispatcher;
 import dev.heliosares.sync.net.PacketType;
 import dev.heliosares.sync.net.PlayerData;
 import dev.heliosares.sync.net.SyncClient;
+import dev.heliosares.sync.net.SyncPolicy;
 import dev.heliosares.sync.net.SyncServer;
 import dev.heliosares.sync.net.packet.BlobPacket;
+import dev.heliosares.sync.net.packet.CommandPacket;
 import dev.heliosares.sync.net.packet.Packet;
 import dev.heliosares.sync.net.packet.PingPacket;
 import dev.kshl.kshlib.encryption.EncryptionRSA;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -29,10 +44,17 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class TestMain {
     private static int serverID = 0;
@@ -55,7 +77,12 @@ public class TestMain {
     }
 
     private TestServer createServer(@Nullable Function<SyncCore, SyncServer> syncServerFunction) {
+        return createServer(syncServerFunction, 0);
+    }
+
+    private TestServer createServer(@Nullable Function<SyncCore, SyncServer> syncServerFunction, int networkThreads) {
         TestServer server = new TestServer("server-" + ++serverID, syncServerFunction, serverRSAPair.privateKey());
+        server.setNetworkThreads(networkThreads);
 
         server.getSync().start("localhost", 0);
         server.reloadKeys(true);
@@ -72,11 +99,16 @@ public class TestMain {
     }
 
     private TestClient createClient(String name, TestServer testServer, boolean implKey, @Nullable SyncClient.CreatorFunction clientCreator) throws Exception {
+        return createClient(name, testServer, implKey, clientCreator, 0);
+    }
+
+    private TestClient createClient(String name, TestServer testServer, boolean implKey, @Nullable SyncClient.CreatorFunction clientCreator, int networkThreads) throws Exception {
         int count = clientID.compute(name, (name_, count_) -> count_ == null ? 0 : (count_ + 1));
         if (count > 0) {
             name += "-" + count;
         }
         TestClient client = new TestClient(name, implKey, clientCreator, serverRSAPair.publicKey());
+        client.setNetworkThreads(networkThreads);
         testServer.reloadKeys(false);
         client.getSync().start("localhost", testServer.getSync().getPort());
         client.getSync().getConnectedCompletable().getAndThrow(3000, TimeUnit.MILLISECONDS);
@@ -170,6 +202,78 @@ public class TestMain {
         assert false;
     }
 
+    @Test(timeout = 3000)
+    public void testCompressedPacket() throws Exception {
+        TestServer server = createServer();
+        final String text = "All work and no play makes Jack a dull boy. ".repeat(1000);
+        CompletableFuture<String> received = new CompletableFuture<>();
+        server.getSync().getEventHandler().registerListener(PacketType.API_WITH_BLOB, "test:compressed", (server1, packet) -> {
+            if (packet instanceof BlobPacket blobPacket && new String(blobPacket.getBlob()).equals(text)) {
+                received.complete(packet.getPayload().getString("text"));
+            } else {
+                received.complete(null);
+            }
+        });
+        TestClient client1 = createClient("client1", server);
+        client1.getSync().send(new BlobPacket("test:compressed", new JSONObject().put("text", text)).setBlob(text.getBytes()));
+
+        assertEquals(text, received.get());
+    }
+
+    @Test(timeout = 5000)
+    public void testNonBlockingTransport() throws Exception {
+        TestServer server = createServer(null, 2);
+        server.getSync().getEventHandler().registerListener(PacketType.API_WITH_BLOB, "test:nio", (server1, packet) -> {
+            if (packet instanceof BlobPacket blobPacket) {
+                server.getSync().send(server1, blobPacket.createResponse(new JSONObject()).setBlob(blobPacket.getBlob()));
+            }
+        });
+        TestClient nioClient = createClient("nio_client", server, true, null, 1);
+        TestClient blockingClient = createClient("blocking_client", server);
+
+        // Larger than the read buffer, so frames arrive in pieces
+        byte[] data = new byte[300 * 1024];
+        new Random(7).nextBytes(data);
+        for (TestClient client : List.of(nioClient, blockingClient)) {
+            CompletableFuture<byte[]> received = new CompletableFuture<>();
+            client.getSync().send(null, new BlobPacket("test:nio", new JSONObject()).setBlob(data), response -> received.complete(((BlobPacket) response).getBlob()));
+            assertArrayEquals(data, received.get());
+        }
+
+        CompletableFuture<String> forwarded = new CompletableFuture<>();
+        blockingClient.getSync().getEventHandler().registerListener(PacketType.API, "test:nio", (server1, packet) -> forwarded.complete(server1));
+        nioClient.getSync().send(blockingClient.getSync().getName(), new Packet("test:nio", PacketType.API, new JSONObject()));
+        assertEquals(nioClient.getSync().getName(), forwarded.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlobStream() throws Exception {
+        TestServer server = createServer();
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+        CompletableFuture<byte[]> received = new CompletableFuture<>();
+        server.getSync().getBlobStreams().registerListener("test:stream", (server1, metadata, stream) -> {
+            assertEquals("value", metadata.getString("key"));
+            received.complete(stream.readAllBytes());
+        });
+        TestClient client1 = createClient("client1", server);
+        client1.getSync().getBlobStreams().send(null, "test:stream", new JSONObject().put("key", "value"), new ByteArrayInputStream(data)).get();
+
+        assertArrayEquals(data, received.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlobStreamCancelled() throws Exception {
+        TestServer server = createServer();
+        server.getSync().getBlobStreams().registerListener("test:stream", (server1, metadata, stream) -> stream.read());
+        TestClient client1 = createClient("client1", server);
+        // Far more than the window, so the sender must wait for credit which never comes
+        CompletableFuture<Void> sent = client1.getSync().getBlobStreams().send(null, "test:stream", new JSONObject(), new ByteArrayInputStream(new byte[64 * 1024 * 1024]));
+
+        ExecutionException e = assertThrows(ExecutionException.class, sent::get);
+        assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("cancelled"));
+    }
+
     @Test(timeout = 1000)
     public void testPlayerDataHash() throws Exception {
         TestServer server = createServer();
@@ -186,6 +290,136 @@ public class TestMain {
         await(() -> client1.getSync().getUserManager().getPlayer(uuid), 1000, "Player data timed out");
     }
 
+    @Test(timeout = 3000)
+    public void testPlayerDataDigest() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        UUID uuid = UUID.randomUUID();
+        Thread.sleep(10);
+        assertEquals(0, server.getSync().getUserManager().getDigest());
+
+        server.getSync().getUserManager().addPlayer("digest", uuid, "proxy", true);
+        PlayerData data = Objects.requireNonNull(server.getSync().getUserManager().getPlayer(uuid));
+        data.getCustomBlob("test", "blob", true).set("blob".getBytes());
+        data.getCustomStringSet("test", "set", true).set(Set.of("a", "b"));
+        data.setMuted(true);
+        long digest = server.getSync().getUserManager().getDigest();
+        assertNotEquals(0, digest);
+
+        await(() -> client1.getSync().getUserManager().getDigest() == digest ? true : null, 1000, "Digests never matched");
+        // Variables which were never set do not count
+        Objects.requireNonNull(client1.getSync().getUserManager().getPlayer(uuid)).getCustomString("test", "unset", true);
+        assertEquals(digest, client1.getSync().getUserManager().getDigest());
+
+        server.getSync().getUserManager().removePlayer(uuid);
+        assertEquals(0, server.getSync().getUserManager().getDigest());
+        await(() -> client1.getSync().getUserManager().getDigest() == 0 ? true : null, 1000, "Quit never arrived");
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
+    @Test(timeout = 3000)
+    public void testPlayerDataResync() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        AtomicBoolean fullResync = new AtomicBoolean();
+        client1.getSync().getEventHandler().registerListener(PacketType.PLAYER_DATA, null, (server1, packet) -> {
+            if (packet.getPayload().has("set")) fullResync.set(true);
+        });
+        Thread.sleep(10);
+        List<UUID> synced = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UUID uuid = UUID.randomUUID();
+            synced.add(uuid);
+            server.getSync().getUserManager().addPlayer("synced" + i, uuid, "proxy", true);
+        }
+        for (UUID uuid : synced) await(() -> client1.getSync().getUserManager().getPlayer(uuid), 1000, "Player data timed out");
+        PlayerData unchanged = client1.getSync().getUserManager().getPlayer(synced.get(0));
+
+        // As if the client missed a join and a quit
+        UUID missed = UUID.randomUUID();
+        server.getSync().getUserManager().addPlayer("missed", missed, "proxy", false);
+        UUID stale = UUID.randomUUID();
+        client1.getSync().getUserManager().addPlayer("stale", stale, "proxy", false);
+
+        // Only the resync matters, not what the client requested when connecting
+        fullResync.set(false);
+        server.getSync().getUserManager().sendHash();
+        long digest = server.getSync().getUserManager().getDigest();
+        await(() -> client1.getSync().getUserManager().getDigest() == digest ? true : null, 1000, "Resync timed out");
+
+        assertNotNull(client1.getSync().getUserManager().getPlayer(missed));
+        assertNull(client1.getSync().getUserManager().getPlayer(stale));
+        // Players which did not differ are kept, not replaced
+        assertSame(unchanged, client1.getSync().getUserManager().getPlayer(synced.get(0)));
+        assertFalse(fullResync.get());
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
+    @Test(timeout = 3000)
+    public void testPlayerDataResyncOwnPlayers() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        String name = client1.getSync().getName();
+        client1.getSync().getUserManager().setSyncPolicy("health", new SyncPolicy(1, 0, 2000));
+        UUID uuid = UUID.randomUUID();
+        Thread.sleep(10);
+        server.getSync().getUserManager().addPlayer("own", uuid, "proxy", true);
+        Objects.requireNonNull(server.getSync().getUserManager().getPlayer(uuid)).setServer(name);
+        PlayerData data = await(() -> {
+            PlayerData received = client1.getSync().getUserManager().getPlayer(uuid);
+            return received != null && name.equals(received.getServer()) ? received : null;
+        }, 1000, "Player data timed out");
+
+        data.setHealth(10);
+        await(() -> {
+            Double health = Objects.requireNonNull(server.getSync().getUserManager().getPlayer(uuid)).getHealth();
+            return health != null && Math.abs(health - 10) < 1E-6 ? true : null;
+        }, 1000, "Health never arrived");
+        // Held back by the policy, so the proxy's copy is behind and the digests differ
+        data.setHealth(10.5);
+        assertNotEquals(server.getSync().getUserManager().getDigest(), client1.getSync().getUserManager().getDigest());
+
+        server.getSync().getUserManager().sendHash();
+        Thread.sleep(250);
+
+        // The proxy's stale copy does not replace the player this server owns
+        assertSame(data, client1.getSync().getUserManager().getPlayer(uuid));
+        assertEquals(10.5, data.getHealth(), 1E-6);
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
+    @Test(timeout = 5000)
+    public void testPlayerDataCatchUp() throws Exception {
+        TestServer server = createServer();
+        UUID uuid = UUID.randomUUID();
+        // Only sent with every player, when the client first connects
+        server.getSync().getUserManager().addPlayer("before", uuid, "proxy", false);
+        TestClient client1 = createClient("client1", server);
+        AtomicReference<JSONArray> deltas = new AtomicReference<>();
+        client1.getSync().getEventHandler().registerListener(PacketType.PLAYER_DATA, null, (server1, packet) -> {
+            if (packet.getPayload().has("deltas")) deltas.set(packet.getPayload().getJSONArray("deltas"));
+        });
+        await(() -> client1.getSync().getUserManager().getPlayer(uuid), 1000, "Player data timed out");
+
+        client1.getSync().closeTemporary();
+        UUID missed = UUID.randomUUID();
+        server.getSync().getUserManager().addPlayer("missed", missed, "proxy", true);
+
+        // Only what was missed while disconnected is sent after reconnecting, instead of every player
+        JSONArray missedDeltas = await(deltas::get, 3000, "Catch up timed out");
+        assertTrue(missedDeltas.toList().stream().anyMatch(delta -> delta.toString().contains(missed.toString())));
+        await(() -> client1.getSync().getUserManager().getDigest() == server.getSync().getUserManager().getDigest() ? true : null, 1000, "Digests never matched");
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
     public static <T> T await(Supplier<T> supplier, long timeout, String message) throws TimeoutException {
         long start = System.currentTimeMillis();
         while (System.currentTimeMillis() - start < timeout) {
@@ -285,6 +519,87 @@ public class TestMain {
 
     }
 
+    @Test(timeout = 3000)
+    public void testPlayerDataBatch() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        AtomicInteger batches = new AtomicInteger();
+        client1.getSync().getEventHandler().registerListener(PacketType.PLAYER_DATA, null, (server1, packet) -> {
+            if (packet.getPayload().has("batch")) batches.incrementAndGet();
+        });
+        UUID uuid1 = UUID.randomUUID();
+        UUID uuid2 = UUID.randomUUID();
+        Thread.sleep(10);
+        server.getSync().getUserManager().addPlayer("batch1", uuid1, "proxy", true);
+        server.getSync().getUserManager().addPlayer("batch2", uuid2, "proxy", true);
+        await(() -> client1.getSync().getUserManager().getPlayer(uuid1), 1000, "Player data timed out");
+        await(() -> client1.getSync().getUserManager().getPlayer(uuid2), 1000, "Player data timed out");
+
+        List<CompletableFuture<Boolean>> sets = new ArrayList<>();
+        for (UUID uuid : List.of(uuid1, uuid2)) {
+            PlayerData data = Objects.requireNonNull(server.getSync().getUserManager().getPlayer(uuid));
+            for (int i = 1; i <= 10; i++) {
+                sets.add(data.getCustomString("test", "key", true).set("value" + i));
+                sets.add(data.getCustomBoolean("test", "flag", true).set(i % 2 == 0));
+            }
+        }
+        for (CompletableFuture<Boolean> set : sets) assertTrue(set.get());
+
+        PlayerData received = await(() -> {
+            PlayerData data = client1.getSync().getUserManager().getPlayer(uuid2);
+            return data != null && "value10".equals(data.getCustomString("test", "key", true).get()) ? data : null;
+        }, 1000, "Batch timed out");
+        assertEquals(true, received.getCustomBoolean("test", "flag", true).get());
+        received = Objects.requireNonNull(client1.getSync().getUserManager().getPlayer(uuid1));
+        assertEquals("value10", received.getCustomString("test", "key", true).get());
+        assertEquals(true, received.getCustomBoolean("test", "flag", true).get());
+        // Usually one, but the sets may straddle a flush
+        assertTrue("Sent " + batches.get() + " batches", batches.get() <= 2);
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
+    @Test(timeout = 3000)
+    public void testSyncPolicy() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new SyncPolicy(1, 0, 0));
+
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        AtomicInteger healthUpdates = new AtomicInteger();
+        client1.getSync().getEventHandler().registerListener(PacketType.PLAYER_DATA, null, (server1, packet) -> {
+            JSONObject batch = packet.getPayload().optJSONObject("batch");
+            if (batch == null) return;
+            for (String uuid : batch.keySet()) {
+                if (batch.getJSONObject(uuid).has("health")) healthUpdates.incrementAndGet();
+            }
+        });
+        UUID uuid = UUID.randomUUID();
+        Thread.sleep(10);
+        server.getSync().getUserManager().setSyncPolicy("health", new SyncPolicy(1, 0, 200));
+        server.getSync().getUserManager().addPlayer("policy", uuid, "proxy", true);
+        await(() -> client1.getSync().getUserManager().getPlayer(uuid), 1000, "Player data timed out");
+
+        PlayerData data = Objects.requireNonNull(server.getSync().getUserManager().getPlayer(uuid));
+        data.setHealth(10);
+        awaitHealth(client1, uuid, 10);
+        // Within the deadband, so held back and sent once together
+        for (int i = 1; i <= 5; i++) data.setHealth(10 + i * 0.1);
+        awaitHealth(client1, uuid, 10.5);
+        Thread.sleep(250);
+        assertEquals(2, healthUpdates.get());
+
+        client1.getSync().close();
+        server.getSync().close();
+    }
+
+    private static void awaitHealth(TestClient client, UUID uuid, double health) throws TimeoutException {
+        await(() -> {
+            PlayerData received = client.getSync().getUserManager().getPlayer(uuid);
+            return received != null && received.getHealth() != null && Math.abs(received.getHealth() - health) < 1E-6 ? true : null;
+        }, 1000, "Health " + health + " never arrived");
+    }
+
     @Test(timeout = 3000)
     public void testForwardedResponse() throws Exception {
         TestServer server = createServer();
@@ -320,6 +635,103 @@ public class TestMain {
         assert received.get();
     }
 
+    @Test(timeout = 2000)
+    public void testResponseTimeoutOrder() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client", server);
+        List<Long> fired = new CopyOnWriteArrayList<>();
+        Map<Long, Long> elapsed = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        for (long timeout : new long[]{150, 50, 100}) {
+            client1.getSync().send(null, new Packet("test:void", PacketType.API, new JSONObject()), response -> {
+            }, timeout, () -> {
+                elapsed.put(timeout, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                fired.add(timeout);
+                latch.countDown();
+            });
+        }
+        latch.await();
+        elapsed.forEach((timeout, millis) -> assertTrue("Timeout of " + timeout + "ms fired after " + millis + "ms", millis >= timeout));
+        assertEquals(List.of(50L, 100L, 150L), fired);
+    }
+
+    @Test(timeout = 3000)
+    public void testRequest() throws Exception {
+        TestServer server = createServer();
+        server.getSync().getEventHandler().registerListener(PacketType.API, "test:channel", (server1, packet) -> server.getSync().send(packet.createResponse(new JSONObject().put("pong", packet.getPayload().getString("ping")))));
+        TestClient client1 = createClient("client1", server);
+
+        Packet response = client1.getSync().request(null, new Packet("test:channel", PacketType.API, new JSONObject().put("ping", "value")), 1000).get();
+        assertEquals("value", response.getPayload().getString("pong"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> client1.getSync().request(null, new Packet("test:void", PacketType.API, new JSONObject()), 50).get());
+        assertTrue(e.getCause() instanceof TimeoutException);
+    }
+
+    @Test(timeout = 3000)
+    public void testRequestAll() throws Exception {
+        TestServer server = createServer();
+        server.getSync().getEventHandler().registerListener(PacketType.API, "test:channel", (server1, packet) -> {
+            for (int i = 0; i < 3; i++) server.getSync().send(packet.createResponse(new JSONObject().put("i", i)));
+        });
+        TestClient client1 = createClient("client1", server);
+
+        List<Integer> received = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> complete = new CompletableFuture<>();
+        client1.getSync().requestAll(null, new Packet("test:channel", PacketType.API, new JSONObject()), 300).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Packet item) {
+                received.add(item.getPayload().getInt("i"));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                complete.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                complete.complete(null);
+            }
+        });
+        complete.get();
+        assertEquals(List.of(0, 1, 2), received);
+    }
+
+    @Test(timeout = 3000)
+    public void testExecuteCommand() throws Exception {
+        TestServer server = createServer();
+        TestClient client1 = createClient("client1", server);
+        TestClient client2 = createClient("client2", server);
+        client1.getSync().getEventHandler().registerListener(PacketType.COMMAND, null, (server1, packet) -> {
+            if (packet.isResponse() || !(packet instanceof CommandPacket commandPacket)) return;
+            CommandOutput output = new CommandOutput(client1, commandPacket);
+            // More than fits in one response
+            for (int i = 0; i < 250; i++) output.line("line " + i);
+            output.finish(CommandResult.Status.OK);
+            // Like a reply on the next tick
+            output.line("after finish");
+        });
+        String name1 = client1.getSync().getName();
+        String name2 = client2.getSync().getName();
+
+        Map<String, CommandResult> results = server.getSync().executeCommand(List.of(name1, name2, "nonexistent"), "test", 300).get();
+        assertEquals(List.of(name1, name2, "nonexistent"), List.copyOf(results.keySet()));
+        assertEquals(CommandResult.Status.OK, results.get(name1).status());
+        List<String> expected = new ArrayList<>(IntStream.range(0, 250).mapToObj(i -> "line " + i).toList());
+        expected.add("after finish");
+        assertEquals(expected, results.get(name1).output());
+        assertEquals(CommandResult.Status.TIMED_OUT, results.get(name2).status());
+        assertTrue(results.get(name2).latencyMillis() >= 300);
+        assertEquals(CommandResult.Status.NOT_SENT, results.get("nonexistent").status());
+    }
+
     @Test(timeout = 3000)
     public void testConnectionTimeout() throws Exception {
         var server = createServer();
@@ -412,4 +824,61 @@ public class TestMain {
         });
         received2.get();
     }
-}
\ No newline at end of file
+
+    @Test(timeout = 5000)
+    public void testDispatcherLanes() throws Exception {
+        TestServer server = createServer();
+        Dispatcher dispatcher = server.getSync().getDispatcher();
+
+        // Tasks in one lane run in order
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            final int i_ = i;
+            dispatcher.dispatch("lane_sender", "lane_channel", () -> {
+                order.add(i_);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(3000, TimeUnit.MILLISECONDS));
+        assertEquals(IntStream.range(0, 1000).boxed().toList(), order);
+
+        // Different lanes run in parallel, the first can only finish once the second has run
+        CountDownLatch other = new CountDownLatch(1);
+        CompletableFuture<Boolean> first = new CompletableFuture<>();
+        dispatcher.dispatch("lane_sender", "lane_1", () -> {
+            try {
+                first.complete(other.await(1000, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                first.completeExceptionally(e);
+            }
+        });
+        dispatcher.dispatch("lane_sender", "lane_2", other::countDown);
+        // Before the stall check could have started another worker
+        assertTrue(first.get(400, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000)
+    public void testDispatcherStalled() throws Exception {
+        TestServer server = createServer();
+        Dispatcher dispatcher = server.getSync().getDispatcher();
+
+        // Every worker waits for a task queued behind them, only the stall check can start one to run it
+        int threads = server.getDispatchThreads();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            dispatcher.dispatch("stall_sender", "blocked_" + i, () -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        assertTrue(blocked.await(1000, TimeUnit.MILLISECONDS));
+        dispatcher.dispatch("stall_sender", "release", release::countDown);
+        assertTrue(release.await(3000, TimeUnit.MILLISECONDS));
+        assertTrue(dispatcher.getWorkers() <= threads * 4);
+    }
+}
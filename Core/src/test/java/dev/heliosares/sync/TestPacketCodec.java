@@ -0,0 +1,172 @@
+package dev.heliosares.sync;
+
+import dev.heliosares.sync.net.BinaryPacketCodec;
+import dev.heliosares.sync.net.IDProvider;
+import dev.heliosares.sync.net.PacketCodec;
+import dev.heliosares.sync.net.PacketType;
+import dev.heliosares.sync.net.packet.BlobPacket;
+import dev.heliosares.sync.net.packet.CommandPacket;
+import dev.heliosares.sync.net.packet.MalformedPacketException;
+import dev.heliosares.sync.net.packet.Packet;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestPacketCodec {
+    private final IDProvider idProvider = new IDProvider((short) 7);
+
+    private Packet roundTrip(PacketCodec codec, Packet packet) {
+        packet.assignResponseID(idProvider);
+        return codec.decode(codec.encode(packet));
+    }
+
+    @Test
+    public void testBinaryHeader() {
+        Packet packet = new Packet("test:channel", PacketType.API, new JSONObject().put("key", "value"));
+        packet.setForward("server1");
+        packet.setOrigin("server2");
+        Packet decoded = roundTrip(PacketCodec.BINARY, packet);
+
+        assertEquals(PacketType.API, decoded.getType());
+        assertEquals("test:channel", decoded.getChannel());
+        assertEquals("server1", decoded.getForward());
+        assertEquals("server2", decoded.getOrigin());
+        assertEquals(packet.getResponseID(), decoded.getResponseID());
+        assertNull(decoded.getReplyToResponseID());
+        assertEquals("value", decoded.getPayload().getString("key"));
+    }
+
+    @Test
+    public void testBinaryResponse() {
+        Packet request = new Packet(null, PacketType.API, new JSONObject());
+        request.assignResponseID(idProvider);
+        Packet decoded = roundTrip(PacketCodec.BINARY, request.createResponse());
+
+        assertTrue(decoded.isResponse());
+        assertEquals(request.getResponseID(), decoded.getReplyToResponseID());
+        assertNull(decoded.getChannel());
+        assertTrue(decoded.getPayload().isEmpty());
+    }
+
+    @Test
+    public void testBinaryValueTypes() {
+        JSONObject payload = new JSONObject()
+                .put("int", -5)
+                .put("long", 1L << 40)
+                .put("double", 10.0)
+                .put("decimal", new BigDecimal("1.25"))
+                .put("bool", true)
+                .put("null", JSONObject.NULL)
+                .put("string", "§aHello ☃")
+                .put("array", new JSONArray().put(1).put("two").put(new JSONObject().put("three", 3)))
+                .put("object", new JSONObject().put("nested", false));
+        JSONObject decoded = roundTrip(PacketCodec.BINARY, new Packet(null, PacketType.API, payload)).getPayload();
+
+        assertEquals(-5, decoded.get("int"));
+        assertEquals(1L << 40, decoded.get("long"));
+        assertEquals(10.0, decoded.get("double"));
+        assertEquals(new BigDecimal("1.25"), decoded.get("decimal"));
+        assertEquals(true, decoded.get("bool"));
+        assertEquals(JSONObject.NULL, decoded.get("null"));
+        assertEquals("§aHello ☃", decoded.get("string"));
+        assertTrue(payload.similar(decoded));
+    }
+
+    @Test
+    public void testPacketSubclass() {
+        for (PacketCodec codec : new PacketCodec[]{PacketCodec.JSON, PacketCodec.BINARY}) {
+            Packet decoded = roundTrip(codec, new CommandPacket("say hi"));
+            assertTrue(decoded instanceof CommandPacket);
+            assertEquals("say hi", ((CommandPacket) decoded).command().get());
+        }
+    }
+
+    @Test
+    public void testBinarySmallerThanJSON() {
+        Packet packet = new Packet("test:channel", PacketType.PLAYER_DATA, new JSONObject().put("update", "health").put("health", 20.0).put("uuid", "00000000-0000-0000-0000-000000000000"));
+        packet.assignResponseID(idProvider);
+        assertTrue(PacketCodec.BINARY.encode(packet).length < PacketCodec.JSON.encode(packet).length);
+    }
+
+    @Test
+    public void testRelay() {
+        Packet packet = new Packet("test:channel", PacketType.API, new JSONObject().put("key", "value"));
+        packet.setForward("server1");
+        packet.assignResponseID(idProvider);
+        byte[] frame = PacketCodec.BINARY.encode(packet);
+
+        BinaryPacketCodec.Header header = BinaryPacketCodec.readHeader(frame);
+        assertEquals("server1", header.forward());
+        assertNull(header.origin());
+        assertEquals(packet.getResponseID(), header.responseID());
+
+        Packet relayed = PacketCodec.BINARY.decode(BinaryPacketCodec.relay(frame, header, "server2"));
+        assertNull(relayed.getForward());
+        assertEquals("server2", relayed.getOrigin());
+        assertEquals(packet.getResponseID(), relayed.getResponseID());
+        assertEquals("test:channel", relayed.getChannel());
+        assertTrue(packet.getPayload().similar(relayed.getPayload()));
+    }
+
+    @Test
+    public void testBlobInFrame() {
+        byte[] blob = "blob contents".getBytes();
+        BlobPacket packet = new BlobPacket("test:blob", new JSONObject().put("key", "value"));
+        packet.setBlob(blob);
+        packet.setForward("server1");
+        packet.assignResponseID(idProvider);
+        byte[] frame = PacketCodec.BINARY.encode(packet);
+
+        BlobPacket decoded = (BlobPacket) PacketCodec.BINARY.decode(frame);
+        assertArrayEquals(blob, decoded.getBlob());
+        assertEquals(ByteBuffer.wrap(blob), decoded.getBlobBuffer());
+        assertEquals("value", decoded.getPayload().getString("key"));
+
+        // The blob is carried along when relaying
+        BlobPacket relayed = (BlobPacket) PacketCodec.BINARY.decode(BinaryPacketCodec.relay(frame, BinaryPacketCodec.readHeader(frame), "server2"));
+        assertArrayEquals(blob, relayed.getBlob());
+        assertEquals("value", relayed.getPayload().getString("key"));
+
+        // Older binary connections send the blob as its own frame
+        assertNull(((BlobPacket) PacketCodec.BINARY_SEPARATE_BLOB.decode(PacketCodec.BINARY_SEPARATE_BLOB.encode(packet))).getBlob());
+    }
+
+    @Test
+    public void testLazyPayload() {
+        Packet packet = new Packet("test:channel", PacketType.API, new JSONObject().put("key", "value"));
+        packet.assignResponseID(idProvider);
+        byte[] frame = PacketCodec.BINARY.encode(packet);
+        frame[BinaryPacketCodec.readHeader(frame).payloadOffset()] = (byte) 0xFF; // Invalid value tag
+
+        // The header is usable until the payload is accessed
+        Packet decoded = PacketCodec.BINARY.decode(frame);
+        assertEquals(PacketType.API, decoded.getType());
+        assertEquals("test:channel", decoded.getChannel());
+        assertEquals(packet.getResponseID(), decoded.getResponseID());
+        assertThrows(MalformedPacketException.class, decoded::getPayload);
+    }
+
+    @Test
+    public void testMalformed() {
+        assertThrows(MalformedPacketException.class, () -> PacketCodec.BINARY.decode(new byte[]{0, (byte) PacketType.API.id, 0, 0}));
+        assertThrows(MalformedPacketException.class, () -> PacketCodec.JSON.decode("not json".getBytes()));
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertEquals(Integer.parseInt(SyncAPI.PROTOCOL_VERSION), PacketCodec.negotiate(SyncAPI.PROTOCOL_VERSION));
+        assertEquals(3, PacketCodec.negotiate("3"));
+        assertEquals(Integer.parseInt(SyncAPI.PROTOCOL_VERSION), PacketCodec.negotiate("999"));
+        assertEquals(-1, PacketCodec.negotiate("2"));
+        assertEquals(-1, PacketCodec.negotiate("garbage"));
+    }
+}
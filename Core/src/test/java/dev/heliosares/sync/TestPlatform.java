@@ -11,8 +11,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public abstract class TestPlatform implements SyncCore {
-    private static final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(100);
+    // Tests rarely close their servers and clients, each of which keeps threads blocked on sockets
+    private static final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(200);
     private final Logger logger;
+    private int networkThreads;
 
     public TestPlatform(String name) {
         this.logger = CustomLogger.getLogger(name);
@@ -98,4 +100,13 @@ public abstract class TestPlatform implements SyncCore {
     @Override
     public void onNewPlayerData(PlayerData data) {
     }
+
+    @Override
+    public int getNetworkThreads() {
+        return networkThreads;
+    }
+
+    public void setNetworkThreads(int networkThreads) {
+        this.networkThreads = networkThreads;
+    }
 }
\ No newline at end of file
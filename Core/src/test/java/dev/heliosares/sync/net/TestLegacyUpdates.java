@@ -0,0 +1,42 @@
+package dev.heliosares.sync.net;
+
+import dev.heliosares.sync.net.packet.Packet;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLegacyUpdates {
+    @Test
+    public void testToLegacyUpdates() {
+        String uuid = UUID.randomUUID().toString();
+        JSONObject fields = new JSONObject()
+                .put("health", 10.5)
+                .put("custom.s.test:key", "value")
+                .put("server", JSONObject.NULL);
+        Packet batch = new Packet(null, PacketType.PLAYER_DATA, new JSONObject().put("batch", new JSONObject().put(uuid, fields)));
+        batch.setOrigin("server1");
+        assertTrue(UserManager.isBatch(batch));
+
+        List<Packet> updates = UserManager.toLegacyUpdates(batch);
+        assertEquals(3, updates.size());
+        for (Packet update : updates) {
+            assertFalse(UserManager.isBatch(update));
+            assertEquals(PacketType.PLAYER_DATA, update.getType());
+            assertEquals("server1", update.getOrigin());
+            assertEquals(uuid, update.getPayload().getString("uuid"));
+            switch (update.getPayload().getString("update")) {
+                case "health" -> assertEquals(10.5, update.getPayload().getDouble("health"), 1E-6);
+                case "custom.s.test:key" -> assertEquals("value", update.getPayload().getString("test:key"));
+                // Null values are left out, as before batches
+                case "server" -> assertEquals(2, update.getPayload().length());
+                default -> throw new AssertionError("Unexpected update " + update.getPayload());
+            }
+        }
+    }
+}
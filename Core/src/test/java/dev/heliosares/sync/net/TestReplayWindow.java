@@ -0,0 +1,61 @@
+package dev.heliosares.sync.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestReplayWindow {
+    @Test
+    public void testOutOfOrder() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(5));
+        assertTrue(window.accept(7));
+        assertTrue(window.accept(6));
+        assertEquals(10, window.getHighest());
+    }
+
+    @Test
+    public void testDuplicate() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(5));
+        assertFalse(window.accept(5));
+        assertFalse(window.accept(10));
+        assertTrue(window.accept(11));
+        assertFalse(window.accept(11));
+    }
+
+    @Test
+    public void testTooOld() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(100));
+        assertFalse(window.accept(36));
+        assertFalse(window.accept(0));
+        assertTrue(window.accept(37));
+    }
+
+    @Test
+    public void testJump() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(100));
+        assertTrue(window.accept(90));
+        // At least a whole window ahead, nothing received before is still tracked
+        assertTrue(window.accept(164));
+        assertEquals(164, window.getHighest());
+        // Same bit as 90 and 100, which must have been cleared
+        assertTrue(window.accept(154));
+        assertFalse(window.accept(100));
+        assertFalse(window.accept(154));
+    }
+
+    @Test
+    public void testSizeRoundedUp() {
+        ReplayWindow window = new ReplayWindow(65);
+        assertTrue(window.accept(200));
+        assertTrue(window.accept(73));
+        assertFalse(window.accept(72));
+    }
+}
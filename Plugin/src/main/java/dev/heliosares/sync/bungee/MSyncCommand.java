@@ -1,9 +1,8 @@
 package dev.heliosares.sync.bungee;
 
-import dev.heliosares.sync.net.PacketType;
+import dev.heliosares.sync.net.CommandResult;
 import dev.heliosares.sync.net.PlayerData;
 import dev.heliosares.sync.net.ServerClientHandler;
-import dev.heliosares.sync.net.packet.Packet;
 import dev.heliosares.sync.utils.CommandParser;
 import dev.heliosares.sync.utils.CommandParser.Result;
 import net.md_5.bungee.api.CommandSender;
@@ -13,15 +12,19 @@ import net.md_5.bungee.api.chat.hover.content.Text;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.TabExecutor;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 public class MSyncCommand extends Command implements TabExecutor {
+    /**
+     * How long to wait for each server to finish a command
+     */
+    private static final long COMMAND_TIMEOUT_MILLIS = 10000;
     private final SyncBungee plugin;
 
     public MSyncCommand(String name, SyncBungee plugin) {
@@ -111,13 +114,21 @@ public class MSyncCommand extends Command implements TabExecutor {
         String message = CommandParser.concat(0, args);
         Result serverR = CommandParser.parse("-s", message);
         message = serverR.remaining();
-        Packet packet = new Packet(null, PacketType.COMMAND, new JSONObject().put("command", message));
-
-        if (plugin.getSync().send(serverR.value(), packet, response -> SyncBungee.tell(sender, response.getPayload().getString("msg")))) {
-            SyncBungee.tell(sender, "§aCommand sent.");
-        } else {
+        Collection<String> servers = serverR.value() == null || serverR.value().equalsIgnoreCase("all") ? plugin.getSync().getServers() : List.of(serverR.value().split(","));
+        if (servers.isEmpty()) {
             SyncBungee.tell(sender, "No servers found matching this name: " + serverR.value());
+            return;
         }
+
+        SyncBungee.tell(sender, "§aCommand sent to " + servers.size() + " server" + (servers.size() == 1 ? "" : "s") + ".");
+        plugin.getSync().executeCommand(servers, message, COMMAND_TIMEOUT_MILLIS).thenAccept(results -> {
+            for (CommandResult result : results.values()) {
+                result.output().forEach(line -> SyncBungee.tell(sender, line));
+            }
+            for (CommandResult result : results.values()) {
+                SyncBungee.tell(sender, (result.status() == CommandResult.Status.OK ? "§a" : "§c") + result.server() + ": " + result.status().name().toLowerCase() + " §7(" + result.latencyMillis() + "ms)");
+            }
+        });
     }
 
     @Override
@@ -5,10 +5,17 @@ import dev.heliosares.sync.SyncAPI;
 import dev.heliosares.sync.SyncCoreProxy;
 import dev.heliosares.sync.bungee.event.ClientConnectedEvent;
 import dev.heliosares.sync.bungee.event.ClientDisconnectedEvent;
+import dev.heliosares.sync.net.CommandOutput;
+import dev.heliosares.sync.net.CommandResult;
 import dev.heliosares.sync.net.DisconnectReason;
+import dev.heliosares.sync.net.Dispatcher;
+import dev.heliosares.sync.net.FrameCompression;
 import dev.heliosares.sync.net.PacketType;
 import dev.heliosares.sync.net.PlayerData;
+import dev.heliosares.sync.net.SocketConnection;
+import dev.heliosares.sync.net.SyncPolicy;
 import dev.heliosares.sync.net.SyncServer;
+import dev.heliosares.sync.net.UserManager;
 import dev.heliosares.sync.net.packet.CommandPacket;
 import dev.heliosares.sync.net.packet.HasPermissionPacket;
 import dev.heliosares.sync.net.packet.MessagePacket;
@@ -152,9 +159,13 @@ public class SyncBungee extends Plugin implements SyncCoreProxy, Listener {
         });
         getSync().getEventHandler().registerListener(PacketType.COMMAND, null, (server, packet) -> {
             if (!(packet instanceof CommandPacket commandPacket)) return;
+            CommandOutput output = new CommandOutput(this, commandPacket);
             try {
                 String message = commandPacket.command().get();
-                if (message == null) return;
+                if (message == null) {
+                    output.finish(CommandResult.Status.ERROR);
+                    return;
+                }
 
                 print("Executing (from " + server + "): /" + message);
 
@@ -164,18 +175,21 @@ public class SyncBungee extends Plugin implements SyncCoreProxy, Listener {
 
                 CommandSender sender;
                 if (playerR.value() == null) {
-                    sender = new CustomBungeeCommandSender(s -> runAsync(() -> getSync().send(packet.createResponse(new JSONObject().put("msg", "§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] §r" + s)))));
+                    sender = new CustomBungeeCommandSender(s -> output.line("§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] §r" + s));
                 } else {
                     sender = getProxy().getPlayer(playerR.value());
                     if (sender == null) {
-                        getSync().send(packet.createResponse(new JSONObject().put("msg", "§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] §cPlayer not found.")));
+                        output.line("§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] §cPlayer not found.");
+                        output.finish(CommandResult.Status.ERROR);
                         return;
                     }
                 }
                 debug("out: " + playerR.remaining());
-                getProxy().getPluginManager().dispatchCommand(sender, playerR.remaining());
+                boolean found = getProxy().getPluginManager().dispatchCommand(sender, playerR.remaining());
+                output.finish(found ? CommandResult.Status.OK : CommandResult.Status.FAILED);
             } catch (Exception e) {
                 print("Error while parsing", e);
+                output.finish(CommandResult.Status.ERROR);
             }
         });
         getSync().getEventHandler().registerListener(PacketType.HAS_PERMISSION, null, ((server, packet_) -> {
@@ -317,6 +331,46 @@ public class SyncBungee extends Plugin implements SyncCoreProxy, Listener {
     public void onNewPlayerData(PlayerData data) {
     }
 
+    @Override
+    public int getCompressionThreshold() {
+        return config.getInt("compression-threshold", FrameCompression.DEFAULT_THRESHOLD);
+    }
+
+    @Override
+    public long getWriteLingerMillis() {
+        return config.getLong("write-linger-millis", 0);
+    }
+
+    @Override
+    public int getWriteMaxBatch() {
+        return config.getInt("write-max-batch", SocketConnection.DEFAULT_WRITE_MAX_BATCH);
+    }
+
+    @Override
+    public int getReplayWindow() {
+        return config.getInt("replay-window", SocketConnection.DEFAULT_REPLAY_WINDOW);
+    }
+
+    @Override
+    public int getDispatchThreads() {
+        return config.getInt("dispatch-threads", Dispatcher.DEFAULT_THREADS);
+    }
+
+    @Override
+    public int getNetworkThreads() {
+        return config.getInt("network-threads", 0);
+    }
+
+    @Override
+    public Map<String, SyncPolicy> getSyncPolicies() {
+        return SyncPolicy.parse(config.getList("sync-policies"), this::warning);
+    }
+
+    @Override
+    public int getPlayerDataLogSize() {
+        return config.getInt("player-data-log-size", UserManager.DEFAULT_DELTA_LOG_SIZE);
+    }
+
     public void reloadKeys(boolean print) {
         Set<EncryptionRSA> clientEncryptionRSA = new HashSet<>();
         File clientsDir = new File(getDataFolder(), "clients");
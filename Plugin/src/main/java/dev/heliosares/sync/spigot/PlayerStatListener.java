@@ -0,0 +1,77 @@
+package dev.heliosares.sync.spigot;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityRegainHealthEvent;
+import org.bukkit.event.entity.FoodLevelChangeEvent;
+import org.bukkit.event.player.PlayerGameModeChangeEvent;
+import org.bukkit.event.player.PlayerItemConsumeEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Captures player stats when events change them, instead of polling every player. Most of these events fire before the change is applied, so players are captured on the next tick, at most once per tick.
+ * <p>
+ * Only used from the main thread.
+ */
+public class PlayerStatListener implements Listener {
+    private final SyncSpigot plugin;
+    private Set<UUID> changed = new HashSet<>();
+
+    public PlayerStatListener(SyncSpigot plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Captures the player's stats on the next tick. Must be called from the main thread.
+     */
+    public void markChanged(UUID uuid) {
+        if (changed.isEmpty()) plugin.getServer().getScheduler().runTask(plugin, this::capture);
+        changed.add(uuid);
+    }
+
+    private void capture() {
+        Set<UUID> changed = this.changed;
+        this.changed = new HashSet<>();
+        for (UUID uuid : changed) {
+            Player player = plugin.getServer().getPlayer(uuid);
+            if (player != null) plugin.updatePlayerData(player);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(EntityDamageEvent e) {
+        if (e.getEntity() instanceof Player player) markChanged(player.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(EntityRegainHealthEvent e) {
+        if (e.getEntity() instanceof Player player) markChanged(player.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(FoodLevelChangeEvent e) {
+        if (e.getEntity() instanceof Player player) markChanged(player.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(PlayerItemConsumeEvent e) {
+        markChanged(e.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void on(PlayerGameModeChangeEvent e) {
+        markChanged(e.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void on(PlayerRespawnEvent e) {
+        markChanged(e.getPlayer().getUniqueId());
+    }
+}
@@ -1,6 +1,7 @@
 package dev.heliosares.sync.spigot;
 
 import dev.heliosares.sync.SyncAPI;
+import dev.heliosares.sync.net.CommandResult;
 import dev.heliosares.sync.net.PacketType;
 import dev.heliosares.sync.net.PlayerData;
 import dev.heliosares.sync.net.packet.Packet;
@@ -22,11 +23,16 @@ import org.json.JSONObject;
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SpigotCommandListener implements CommandExecutor, TabCompleter {
+    /**
+     * How long to wait for each server to finish a command
+     */
+    private static final long COMMAND_TIMEOUT_MILLIS = 10000;
     private static final Pattern PLACEHOLDER_PATTERN_W_USERNAME = Pattern.compile("\\{([\\w_]+):([\\w_-]+)}");
     private final SyncSpigot plugin;
 
@@ -92,8 +98,21 @@ public class SpigotCommandListener implements CommandExecutor, TabCompleter {
                         server = serverR.value();
                         command = serverR.remaining();
                     }
-                    Packet packet = new Packet(null, PacketType.COMMAND, new JSONObject().put("command", command));
-                    plugin.getSync().send(server, packet, response -> sender.sendMessage(response.getPayload().getString("msg")));
+                    if (server == null) {
+                        // Run by the proxy itself
+                        Packet packet = new Packet(null, PacketType.COMMAND, new JSONObject().put("command", command));
+                        plugin.getSync().send(null, packet, response -> sender.sendMessage(response.getPayload().getString("msg")));
+                    } else {
+                        Collection<String> servers = server.equalsIgnoreCase("all") ? plugin.getSync().getServers() : List.of(server.split(","));
+                        plugin.getSync().executeCommand(servers, command, COMMAND_TIMEOUT_MILLIS).thenAccept(results -> {
+                            for (CommandResult result : results.values()) {
+                                result.output().forEach(sender::sendMessage);
+                            }
+                            for (CommandResult result : results.values()) {
+                                sender.sendMessage((result.status() == CommandResult.Status.OK ? "§a" : "§c") + result.server() + ": " + result.status().name().toLowerCase() + " §7(" + result.latencyMillis() + "ms)");
+                            }
+                        });
+                    }
                 } catch (Exception e) {
                     sender.sendMessage("§cAn error occured");
                     plugin.print("Error while processing command", e);
@@ -5,9 +5,16 @@ import com.earth2me.essentials.User;
 import dev.heliosares.sync.MySender;
 import dev.heliosares.sync.SyncAPI;
 import dev.heliosares.sync.SyncCore;
+import dev.heliosares.sync.net.CommandOutput;
+import dev.heliosares.sync.net.CommandResult;
+import dev.heliosares.sync.net.Dispatcher;
+import dev.heliosares.sync.net.FrameCompression;
 import dev.heliosares.sync.net.PacketType;
 import dev.heliosares.sync.net.PlayerData;
+import dev.heliosares.sync.net.SocketConnection;
 import dev.heliosares.sync.net.SyncClient;
+import dev.heliosares.sync.net.SyncPolicy;
+import dev.heliosares.sync.net.packet.CommandPacket;
 import dev.heliosares.sync.net.packet.HasPermissionPacket;
 import dev.heliosares.sync.net.packet.PlaySoundPacket;
 import dev.heliosares.sync.net.packet.ShowTitlePacket;
@@ -31,6 +38,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.function.Consumer;
@@ -38,10 +46,15 @@ import java.util.function.Supplier;
 import java.util.logging.Level;
 
 public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
+    /**
+     * How often every player's stats are captured, in case an event was missed
+     */
+    public static final long DEFAULT_STAT_RECONCILE_MILLIS = 30000;
     private static SyncSpigot instance;
     private SyncClient sync;
     private boolean debug = false;
     private Plugin essentials;
+    private PlayerStatListener statListener;
 
     public SyncSpigot() {
         try {
@@ -74,13 +87,14 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
         Objects.requireNonNull(this.getCommand("if")).setExecutor(cmd);
         Objects.requireNonNull(this.getCommand("mtell")).setExecutor(cmd);
         this.getServer().getPluginManager().registerEvents(this, this);
+        this.getServer().getPluginManager().registerEvents(statListener = new PlayerStatListener(this), this);
         try {
             this.getServer().getPluginManager().registerEvents(new VanishListener(this), this);
         } catch (Throwable ignored) {
         }
 
         if ((essentials = getServer().getPluginManager().getPlugin("Essentials")) != null) {
-            this.getServer().getPluginManager().registerEvents(new EssentialsListener(), this);
+            this.getServer().getPluginManager().registerEvents(new EssentialsListener(this), this);
         }
 
         File clientKeyFile = new File(getDataFolder(), "private.key");
@@ -118,10 +132,10 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
         sync.start(getConfig().getString("host", null), getConfig().getInt("port", 8001));
 
         sync.getEventHandler().registerListener(PacketType.COMMAND, null, (server, packet) -> {
+            if (packet.isResponse() || !(packet instanceof CommandPacket commandPacket)) return;
+            CommandOutput output = new CommandOutput(this, commandPacket);
             try {
-                if (packet.isResponse()) return;
-
-                String message = packet.getPayload().getString("command");
+                String message = commandPacket.command().get();
 
                 if (message.equals("-kill")) {
                     print("Killing");
@@ -139,22 +153,20 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
                 Result playerR = CommandParser.parse("-p", message);
                 CommandSender sender;
                 if (playerR.value() == null) {
-                    sender = new CustomCommandSender(s -> runAsync(() -> {
-                        String response = "§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] " + s;
-                        try {
-                            getSync().send(packet.createResponse(new JSONObject().put("msg", response)));
-                        } catch (IOException e) {
-                            print(null, e);
-                        }
-                    }));
+                    sender = new CustomCommandSender(s -> output.line("§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] " + s));
                 } else {
                     sender = getPlayer(playerR.value());
                     message = playerR.remaining();
-                    if (sender == null) return;
+                    if (sender == null) {
+                        output.line("§8[§7From " + SyncAPI.getInstance().getSync().getName() + "§8] §cPlayer not found.");
+                        output.finish(CommandResult.Status.ERROR);
+                        return;
+                    }
                 }
-                dispatchCommand(sender, message);
+                dispatchCommand(sender, message, output);
             } catch (Exception e) {
                 print("Error while parsing", e);
+                output.finish(CommandResult.Status.ERROR);
             }
         });
 
@@ -201,7 +213,9 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
             sync.send(response);
         }));
 
-        getServer().getScheduler().runTaskTimerAsynchronously(this, () -> getServer().getOnlinePlayers().forEach(this::updatePlayerData), 10, 10);
+        // Stats are captured by PlayerStatListener as they change, this only catches what no event covers
+        long reconcileTicks = Math.max(1, getConfig().getLong("stat-reconcile-millis", DEFAULT_STAT_RECONCILE_MILLIS) / 50L);
+        getServer().getScheduler().runTaskTimer(this, () -> getServer().getOnlinePlayers().forEach(this::updatePlayerData), reconcileTicks, reconcileTicks);
     }
 
     public Player getPlayer(String key) {
@@ -274,10 +288,14 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
         updatePlayerData(e.getPlayer());
     }
 
-    private void updatePlayerData(Player player) {
+    /**
+     * Must be called from the main thread
+     */
+    void updatePlayerData(Player player) {
         PlayerData data = sync.getUserManager().getPlayer(player.getUniqueId());
         if (data == null) {
-            warning("Player " + player.getName() + " joined consume no player data.");
+            // Captured once it arrives, see onNewPlayerData
+            debug("No player data for " + player.getName() + " yet");
             return;
         }
         data.setVanished(isVanished(player));
@@ -308,15 +326,26 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
         getServer().getScheduler().runTaskLaterAsynchronously(this, run, delay / 50L + 1);
     }
 
-    private void dispatchCommand(CommandSender sender, String command) {
+    private void dispatchCommand(CommandSender sender, String command, CommandOutput output) {
         new BukkitRunnable() {
             @Override
             public void run() {
-                getServer().dispatchCommand(sender, command);
+                CommandResult.Status status;
+                try {
+                    status = getServer().dispatchCommand(sender, command) ? CommandResult.Status.OK : CommandResult.Status.FAILED;
+                } catch (Exception e) {
+                    print("Error executing /" + command, e);
+                    status = CommandResult.Status.ERROR;
+                }
+                output.finish(status);
             }
         }.runTask(this);
     }
 
+    public PlayerStatListener getStatListener() {
+        return statListener;
+    }
+
     @Override
     public SyncClient getSync() {
         return sync;
@@ -334,8 +363,47 @@ public class SyncSpigot extends JavaPlugin implements SyncCore, Listener {
 
     @Override
     public void onNewPlayerData(PlayerData data) {
-        Player player = getServer().getPlayer(data.getUUID());
-        if (player == null) return;
-        data.setVanished(isVanished(player));
+        UUID uuid = data.getUUID();
+        // Most players received are on other servers, don't queue a task for each of them
+        if (getServer().getPlayer(uuid) == null) return;
+        getServer().getScheduler().runTask(this, () -> {
+            Player player = getServer().getPlayer(uuid);
+            if (player != null) updatePlayerData(player);
+        });
+    }
+
+    @Override
+    public int getCompressionThreshold() {
+        return getConfig().getInt("compression-threshold", FrameCompression.DEFAULT_THRESHOLD);
+    }
+
+    @Override
+    public long getWriteLingerMillis() {
+        return getConfig().getLong("write-linger-millis", 0);
+    }
+
+    @Override
+    public int getWriteMaxBatch() {
+        return getConfig().getInt("write-max-batch", SocketConnection.DEFAULT_WRITE_MAX_BATCH);
+    }
+
+    @Override
+    public int getReplayWindow() {
+        return getConfig().getInt("replay-window", SocketConnection.DEFAULT_REPLAY_WINDOW);
+    }
+
+    @Override
+    public int getDispatchThreads() {
+        return getConfig().getInt("dispatch-threads", Dispatcher.DEFAULT_THREADS);
+    }
+
+    @Override
+    public int getNetworkThreads() {
+        return getConfig().getInt("network-threads", 0);
+    }
+
+    @Override
+    public Map<String, SyncPolicy> getSyncPolicies() {
+        return SyncPolicy.parse(getConfig().getMapList("sync-policies"), this::warning);
     }
 }